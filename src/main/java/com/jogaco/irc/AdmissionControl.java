@@ -0,0 +1,162 @@
+package com.jogaco.irc;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Server channel handler deciding on each accepted connection before it is
+ * registered: a rejected child is closed here, so no pipeline or
+ * IRCServerHandler is ever built for it. Checks, in order: accept rate (token
+ * bucket), global connection cap and concurrent connections per source address.
+ * A limit of 0 disables the check. Shared by every listener of the server.
+ */
+@Sharable
+public class AdmissionControl extends ChannelInboundHandlerAdapter implements AdmissionControlMBean {
+    public static final int DEFAULT_MAX_PER_ADDRESS = 100;
+    public static final int DEFAULT_ACCEPTS_PER_SECOND = 1000;
+
+    private final int maxConnections;
+    private final int maxPerAddress;
+    private final int acceptsPerSecond;
+
+    private final AtomicInteger active = new AtomicInteger();
+    // Guarded by itself: accepted on the boss loop, released from child loops
+    private final LongIntHashMap perAddress = new LongIntHashMap(1024);
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong rejectedMaxConnections = new AtomicLong();
+    private final AtomicLong rejectedMaxPerAddress = new AtomicLong();
+    private final AtomicLong rejectedAcceptRate = new AtomicLong();
+    // Token bucket, guarded by this
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    public AdmissionControl(int maxConnections, int maxPerAddress, int acceptsPerSecond) {
+        this.maxConnections = maxConnections;
+        this.maxPerAddress = maxPerAddress;
+        this.acceptsPerSecond = acceptsPerSecond;
+        tokens = acceptsPerSecond;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        final Channel child = (Channel) msg;
+        if (admit(child)) {
+            ctx.fireChannelRead(child);
+        } else {
+            child.unsafe().closeForcibly();
+        }
+    }
+
+    boolean admit(Channel child) {
+        if (!takeToken()) {
+            rejectedAcceptRate.incrementAndGet();
+            return false;
+        }
+        if (active.incrementAndGet() > maxConnections && maxConnections > 0) {
+            active.decrementAndGet();
+            rejectedMaxConnections.incrementAndGet();
+            return false;
+        }
+        final long key = addressKey(child.remoteAddress());
+        synchronized (perAddress) {
+            if (perAddress.increment(key) > maxPerAddress && maxPerAddress > 0) {
+                perAddress.decrement(key);
+                active.decrementAndGet();
+                rejectedMaxPerAddress.incrementAndGet();
+                return false;
+            }
+        }
+        accepted.incrementAndGet();
+        child.closeFuture().addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) {
+                synchronized (perAddress) {
+                    perAddress.decrement(key);
+                }
+                active.decrementAndGet();
+            }
+        });
+        return true;
+    }
+
+    private synchronized boolean takeToken() {
+        if (acceptsPerSecond <= 0) {
+            return true;
+        }
+        long now = System.nanoTime();
+        tokens = Math.min(acceptsPerSecond, tokens + (now - lastRefill) * acceptsPerSecond / (double) TimeUnit.SECONDS.toNanos(1));
+        lastRefill = now;
+        if (tokens >= 1) {
+            --tokens;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * IPv4 addresses map one to one; IPv6 addresses are folded to 64 bits
+     */
+    static long addressKey(SocketAddress address) {
+        if (!(address instanceof InetSocketAddress) || ((InetSocketAddress) address).getAddress() == null) {
+            return 0;
+        }
+        InetAddress inet = ((InetSocketAddress) address).getAddress();
+        byte[] bytes = inet.getAddress();
+        long high = 0;
+        long low = 0;
+        for (int i = 0; i < bytes.length; ++i) {
+            if (i < 8) {
+                high = (high << 8) | (bytes[i] & 0xff);
+            } else {
+                low = (low << 8) | (bytes[i] & 0xff);
+            }
+        }
+        if (bytes.length == 4) {
+            return high;
+        }
+        long key = high ^ Long.rotateLeft(low, 31);
+        return key == Long.MIN_VALUE ? Long.MAX_VALUE : key;
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return active.get();
+    }
+
+    @Override
+    public int getActiveAddresses() {
+        synchronized (perAddress) {
+            return perAddress.size();
+        }
+    }
+
+    @Override
+    public long getAccepted() {
+        return accepted.get();
+    }
+
+    @Override
+    public long getRejectedMaxConnections() {
+        return rejectedMaxConnections.get();
+    }
+
+    @Override
+    public long getRejectedMaxPerAddress() {
+        return rejectedMaxPerAddress.get();
+    }
+
+    @Override
+    public long getRejectedAcceptRate() {
+        return rejectedAcceptRate.get();
+    }
+}
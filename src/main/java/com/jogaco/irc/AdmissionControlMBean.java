@@ -0,0 +1,19 @@
+package com.jogaco.irc;
+
+public interface AdmissionControlMBean {
+
+    int getActiveConnections();
+
+    /**
+     * Distinct source addresses currently connected
+     */
+    int getActiveAddresses();
+
+    long getAccepted();
+
+    long getRejectedMaxConnections();
+
+    long getRejectedMaxPerAddress();
+
+    long getRejectedAcceptRate();
+}
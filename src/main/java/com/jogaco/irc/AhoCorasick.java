@@ -0,0 +1,172 @@
+package com.jogaco.irc;
+
+import java.util.Arrays;
+
+/**
+ * Aho-Corasick automaton over case-folded chars, compiled to a full transition
+ * table so that scanning costs one table lookup per char whatever the number of
+ * patterns. Chars are first mapped to classes (one per distinct char used by
+ * the patterns, class 0 for every other char) to keep the table small. Several
+ * automata may share one class table (see {@link #charClasses(String[]...)}),
+ * so a char is classified once for all of them. Immutable once built.
+ */
+public class AhoCorasick {
+    private final char[] classOf;
+    private final int classes;
+    private final int[] delta;
+    // Pattern ending at each state, -1 if none
+    private final int[] output;
+    // Nearest state on the failure chain having an output, 0 if none
+    private final int[] dictLink;
+    private final int[] lengths;
+    private final int[] payloads;
+
+    /**
+     * @param payloads value attached to each pattern; when a state ends several
+     *        identical patterns the largest payload wins
+     */
+    public AhoCorasick(String[] patterns, int[] payloads) {
+        this(patterns, payloads, charClasses(patterns));
+    }
+
+    /**
+     * @param classOf class table covering every char of patterns, possibly
+     *        shared with other automata
+     */
+    AhoCorasick(String[] patterns, int[] payloads, char[] classOf) {
+        this.classOf = classOf;
+        int maxClass = 0;
+        for (char c : classOf) {
+            maxClass = Math.max(maxClass, c);
+        }
+        classes = maxClass + 1;
+        lengths = new int[patterns.length];
+        this.payloads = Arrays.copyOf(payloads, payloads.length);
+
+        // Trie
+        int capacity = 1;
+        for (String pattern : patterns) {
+            capacity += pattern.length();
+        }
+        int[] trie = new int[capacity * classes];
+        Arrays.fill(trie, -1);
+        int[] out = new int[capacity];
+        Arrays.fill(out, -1);
+        int states = 1;
+        for (int p = 0; p < patterns.length; ++p) {
+            String pattern = patterns[p];
+            lengths[p] = pattern.length();
+            if (pattern.isEmpty()) {
+                continue;
+            }
+            int state = 0;
+            for (int i = 0; i < pattern.length(); ++i) {
+                int slot = state * classes + classOf[fold(pattern.charAt(i))];
+                if (trie[slot] < 0) {
+                    trie[slot] = states++;
+                }
+                state = trie[slot];
+            }
+            if (out[state] < 0 || this.payloads[p] > this.payloads[out[state]]) {
+                out[state] = p;
+            }
+        }
+
+        // Failure links, breadth first, turning the trie into a DFA
+        delta = Arrays.copyOf(trie, states * classes);
+        output = Arrays.copyOf(out, states);
+        dictLink = new int[states];
+        int[] fail = new int[states];
+        int[] queue = new int[states];
+        int head = 0;
+        int tail = 0;
+        for (int c = 0; c < classes; ++c) {
+            int child = delta[c];
+            if (child < 0) {
+                delta[c] = 0;
+            } else {
+                fail[child] = 0;
+                queue[tail++] = child;
+            }
+        }
+        while (head < tail) {
+            int state = queue[head++];
+            int f = fail[state];
+            dictLink[state] = output[f] >= 0 ? f : dictLink[f];
+            for (int c = 0; c < classes; ++c) {
+                int slot = state * classes + c;
+                int child = delta[slot];
+                if (child < 0) {
+                    delta[slot] = delta[f * classes + c];
+                } else {
+                    fail[child] = delta[f * classes + c];
+                    queue[tail++] = child;
+                }
+            }
+        }
+    }
+
+    /**
+     * Class table for the chars of every pattern set
+     */
+    static char[] charClasses(String[]... patternSets) {
+        char[] classOf = new char[Character.MAX_VALUE + 1];
+        int nextClass = 1;
+        for (String[] patterns : patternSets) {
+            for (String pattern : patterns) {
+                for (int i = 0; i < pattern.length(); ++i) {
+                    char c = fold(pattern.charAt(i));
+                    if (classOf[c] == 0) {
+                        classOf[c] = (char) nextClass++;
+                    }
+                }
+            }
+        }
+        return classOf;
+    }
+
+    static char fold(char c) {
+        return Character.toLowerCase(c);
+    }
+
+    int next(int state, char c) {
+        return step(state, charClass(c));
+    }
+
+    /**
+     * Class of c, the same for every automaton sharing this class table
+     */
+    int charClass(char c) {
+        return classOf[fold(c)];
+    }
+
+    int step(int state, int charClass) {
+        return delta[state * classes + charClass];
+    }
+
+    /**
+     * Pattern ending at state, -1 if none
+     */
+    int output(int state) {
+        return output[state];
+    }
+
+    /**
+     * Next state on the failure chain with an output, 0 when there is none
+     */
+    int dictLink(int state) {
+        return dictLink[state];
+    }
+
+    int length(int pattern) {
+        return lengths[pattern];
+    }
+
+    int payload(int pattern) {
+        return payloads[pattern];
+    }
+
+    public int states() {
+        return output.length;
+    }
+}
@@ -0,0 +1,94 @@
+package com.jogaco.irc;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Live channels (at least one member) ordered by name and by member count,
+ * updated on every join and leave. Queries walk the head of a skip list, so
+ * their cost depends on the number of results, not on the number of channels.
+ * Updates of one channel must be serialized by the caller (its users lock).
+ */
+public class ChannelDirectory {
+
+    static class Entry {
+        final String name;
+        final int members;
+
+        Entry(String name, int members) {
+            this.name = name;
+            this.members = members;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        int getMembers() {
+            return members;
+        }
+    }
+
+    // Most members first, then by name
+    static final Comparator<Entry> BY_MEMBERS = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry e1, Entry e2) {
+            int c = Integer.compare(e2.members, e1.members);
+            return c != 0 ? c : e1.name.compareTo(e2.name);
+        }
+    };
+
+    private final ConcurrentSkipListMap<String, Entry> byName = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListSet<Entry> byMembers = new ConcurrentSkipListSet<>(BY_MEMBERS);
+
+    /**
+     * Records the member count of a channel; 0 removes it from the directory
+     */
+    void update(String name, int members) {
+        Entry entry = members > 0 ? new Entry(name, members) : null;
+        Entry previous = entry != null ? byName.put(name, entry) : byName.remove(name);
+        if (previous != null) {
+            byMembers.remove(previous);
+        }
+        if (entry != null) {
+            byMembers.add(entry);
+        }
+    }
+
+    /**
+     * Channels whose name starts with prefix, in name order
+     */
+    List<Entry> withPrefix(String prefix, int limit) {
+        NavigableMap<String, Entry> range = byName.tailMap(prefix, true);
+        List<Entry> found = new ArrayList<>(Math.min(limit, 16));
+        for (Entry entry : range.values()) {
+            if (found.size() == limit || !entry.name.startsWith(prefix)) {
+                break;
+            }
+            found.add(entry);
+        }
+        return found;
+    }
+
+    /**
+     * Channels with the most members
+     */
+    List<Entry> top(int limit) {
+        List<Entry> found = new ArrayList<>(Math.min(limit, 16));
+        for (Entry entry : byMembers) {
+            if (found.size() == limit) {
+                break;
+            }
+            found.add(entry);
+        }
+        return found;
+    }
+
+    int size() {
+        return byName.size();
+    }
+}
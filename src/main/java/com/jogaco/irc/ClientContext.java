@@ -1,14 +1,36 @@
 package com.jogaco.irc;
 
+import io.netty.util.concurrent.EventExecutor;
+
 public interface ClientContext {
     
     void setUser(User user);
     
     User getUser();
 
-    public void setOutput(String output);
-    
     void notify(UserMessage msg);
+
+    /**
+     * Sends a server generated line, already terminated
+     */
+    void notify(String line);
+
+    /**
+     * Whether messages sent to this client carry their sequence number
+     */
+    boolean isSequenced();
+
+    void setSequenced(boolean sequenced);
+
+    /**
+     * System.nanoTime() of the read that carried the command being run
+     */
+    long getReceivedNanos();
+
+    /**
+     * Event loop serving this client
+     */
+    EventExecutor getExecutor();
     
     public void setCurrentChannel(IRCServer.Chat channel);
 
@@ -0,0 +1,216 @@
+package com.jogaco.irc;
+
+import io.netty.util.concurrent.EventExecutor;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Scheduling mode giving control commands (everything but chat lines) priority
+ * over chat fan-out. Chat lines are still accepted in order (history, sequence
+ * number), but their delivery to the other members is queued on the sender's
+ * event loop and run in slices of at most sliceNanos, so reads, and the
+ * control commands they carry, get the loop back between slices.
+ */
+public class CommandScheduler implements CommandSchedulerMBean {
+    public static final long DEFAULT_SLICE_NANOS = TimeUnit.MICROSECONDS.toNanos(500);
+    // Recipients notified between two clock checks
+    static final int CLOCK_CHECK_INTERVAL = 16;
+
+    private final long sliceNanos;
+    private final ConcurrentMap<EventExecutor, LoopQueue> queues = new ConcurrentHashMap<>();
+    private final DelayStats control = new DelayStats();
+    private final DelayStats fanOut = new DelayStats();
+    private final AtomicLong slices = new AtomicLong();
+
+    public CommandScheduler(long sliceNanos) {
+        this.sliceNanos = sliceNanos;
+    }
+
+    static class DelayStats {
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong totalNanos = new AtomicLong();
+        final AtomicLong maxNanos = new AtomicLong();
+
+        void record(long delayNanos) {
+            count.incrementAndGet();
+            totalNanos.addAndGet(delayNanos);
+            long max = maxNanos.get();
+            while (delayNanos > max && !maxNanos.compareAndSet(max, delayNanos)) {
+                max = maxNanos.get();
+            }
+        }
+
+        double meanMicros() {
+            long n = count.get();
+            return n == 0 ? 0 : totalNanos.get() / 1000.0 / n;
+        }
+    }
+
+    /**
+     * Delivery of one message to a snapshot of the channel members
+     */
+    class FanOut {
+        final UserMessage msg;
+        final ClientContext sender;
+        final ClientContext[] recipients;
+        final long receivedNanos;
+        final String channel;
+        IRCEvents.FanOutEvent event;
+        int next;
+        int delivered;
+
+        FanOut(String channel, UserMessage msg, ClientContext sender, ClientContext[] recipients, long receivedNanos) {
+            this.channel = channel;
+            this.msg = msg;
+            this.sender = sender;
+            this.recipients = recipients;
+            this.receivedNanos = receivedNanos;
+        }
+
+        /**
+         * @return true once every recipient has been notified
+         */
+        boolean deliver(long deadline) {
+            if (event == null) {
+                fanOut.record(System.nanoTime() - receivedNanos);
+                event = new IRCEvents.FanOutEvent();
+                event.begin();
+            }
+            while (next < recipients.length) {
+                ClientContext recipient = recipients[next++];
+                if (recipient != sender) {
+                    recipient.notify(msg);
+                    ++delivered;
+                }
+                if (next < recipients.length && next % CLOCK_CHECK_INTERVAL == 0
+                        && System.nanoTime() >= deadline) {
+                    return false;
+                }
+            }
+            return complete();
+        }
+
+        private boolean complete() {
+            event.end();
+            if (event.shouldCommit()) {
+                event.channel = channel;
+                event.recipients = delivered;
+                event.commit();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Fan-out queued on one event loop; only touched from that loop
+     */
+    class LoopQueue implements Runnable {
+        final EventExecutor loop;
+        final ArrayDeque<FanOut> pending = new ArrayDeque<>();
+        boolean scheduled;
+
+        LoopQueue(EventExecutor loop) {
+            this.loop = loop;
+        }
+
+        void add(FanOut job) {
+            pending.add(job);
+            if (!scheduled) {
+                scheduled = true;
+                loop.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            slices.incrementAndGet();
+            long deadline = System.nanoTime() + sliceNanos;
+            while (!pending.isEmpty()) {
+                if (pending.peek().deliver(deadline)) {
+                    pending.poll();
+                }
+                if (System.nanoTime() >= deadline) {
+                    break;
+                }
+            }
+            if (pending.isEmpty()) {
+                scheduled = false;
+            } else {
+                // Not execute(): the loop runs up to 64 queued tasks between
+                // deadline checks, so a re-queued slice would run again before
+                // the next select. Due scheduled tasks are only fetched when a
+                // task pass starts, i.e. after the loop has processed I/O.
+                loop.schedule(this, 0, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    void controlStarted(long receivedNanos) {
+        control.record(System.nanoTime() - receivedNanos);
+    }
+
+    /**
+     * Queues delivery of msg on the sender's event loop
+     */
+    void fanOut(String channel, UserMessage msg, ClientContext sender, ClientContext[] recipients) {
+        EventExecutor loop = sender.getExecutor();
+        final FanOut job = new FanOut(channel, msg, sender, recipients, sender.getReceivedNanos());
+        LoopQueue queue = queues.get(loop);
+        if (queue == null) {
+            queue = new LoopQueue(loop);
+            LoopQueue existing = queues.putIfAbsent(loop, queue);
+            if (existing != null) {
+                queue = existing;
+            }
+        }
+        if (loop.inEventLoop()) {
+            queue.add(job);
+        } else {
+            final LoopQueue target = queue;
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    target.add(job);
+                }
+            });
+        }
+    }
+
+    @Override
+    public long getControlCommands() {
+        return control.count.get();
+    }
+
+    @Override
+    public double getControlMeanDelayMicros() {
+        return control.meanMicros();
+    }
+
+    @Override
+    public long getControlMaxDelayMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(control.maxNanos.get());
+    }
+
+    @Override
+    public long getFanOuts() {
+        return fanOut.count.get();
+    }
+
+    @Override
+    public double getFanOutMeanDelayMicros() {
+        return fanOut.meanMicros();
+    }
+
+    @Override
+    public long getFanOutMaxDelayMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(fanOut.maxNanos.get());
+    }
+
+    @Override
+    public long getFanOutSlices() {
+        return slices.get();
+    }
+}
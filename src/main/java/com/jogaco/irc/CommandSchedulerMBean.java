@@ -0,0 +1,28 @@
+package com.jogaco.irc;
+
+public interface CommandSchedulerMBean {
+
+    long getControlCommands();
+
+    /**
+     * Mean time control commands waited between being read and being run
+     */
+    double getControlMeanDelayMicros();
+
+    long getControlMaxDelayMicros();
+
+    long getFanOuts();
+
+    /**
+     * Mean time chat lines waited between being read and the start of their
+     * delivery to the channel
+     */
+    double getFanOutMeanDelayMicros();
+
+    long getFanOutMaxDelayMicros();
+
+    /**
+     * Time slices the event loops spent delivering fan-out
+     */
+    long getFanOutSlices();
+}
@@ -0,0 +1,275 @@
+package com.jogaco.irc;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Blocklist filter compiled from a rules file into Aho-Corasick automata, so a
+ * message is checked in one pass whatever the size of the blocklist. The global
+ * rules are compiled once; each [channel] section only gets a small automaton
+ * of its own rules, run alongside the global one. All automata share one char
+ * class table.
+ *
+ * Rules file format, one rule per line:
+ * <pre>
+ * # comment
+ * drop buy cheap pills
+ * redact badword
+ * [channel]
+ * flag something
+ * </pre>
+ * Rules before any [channel] header apply to every channel; rules under a
+ * header apply to that channel on top of the global ones. Matching ignores
+ * case. When several rules match, drop beats redact, which beats flag.
+ *
+ * {@link #reload()} compiles the file again and swaps the rules atomically;
+ * messages being filtered keep using the rules they started with.
+ */
+public class ContentFilter implements MessageFilter {
+
+    enum Action {
+        // Ordered by severity
+        FLAG, REDACT, DROP
+    }
+
+    static final char REDACTED = '*';
+
+    private static final Logger LOGGER = Logger.getLogger(ContentFilter.class.getName());
+
+    private final Path file;
+    private volatile Rules rules;
+    private FileTime loadedModified;
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong redacted = new AtomicLong();
+    private final AtomicLong flagged = new AtomicLong();
+    private ScheduledExecutorService watcher;
+
+    static class Rules {
+        final AhoCorasick global;
+        final Map<String, AhoCorasick> channels;
+
+        Rules(AhoCorasick global, Map<String, AhoCorasick> channels) {
+            this.global = global;
+            this.channels = channels;
+        }
+
+        /**
+         * Rules of the channel on top of the global ones, null if none
+         */
+        AhoCorasick forChannel(String channel) {
+            return channels.get(channel);
+        }
+    }
+
+    /**
+     * Outcome of filtering one message
+     */
+    static class Verdict {
+        final String message;
+        int severity = -1;
+        boolean flag;
+        char[] chars;
+
+        Verdict(String message) {
+            this.message = message;
+        }
+
+        /**
+         * Applies the patterns matched by automaton in state, ending at index end
+         */
+        void matched(AhoCorasick automaton, int state, int end) {
+            int match = automaton.output(state) >= 0 ? state : automaton.dictLink(state);
+            while (match != 0) {
+                int pattern = automaton.output(match);
+                int action = automaton.payload(pattern);
+                severity = Math.max(severity, action);
+                if (action == Action.FLAG.ordinal()) {
+                    flag = true;
+                } else if (action == Action.REDACT.ordinal() && severity < Action.DROP.ordinal()) {
+                    if (chars == null) {
+                        chars = message.toCharArray();
+                    }
+                    Arrays.fill(chars, end + 1 - automaton.length(pattern), end + 1, REDACTED);
+                }
+                match = automaton.dictLink(match);
+            }
+        }
+    }
+
+    public ContentFilter(Path file) throws IOException {
+        this.file = file;
+        reload();
+    }
+
+    /**
+     * Compiles the rules file again and swaps it in
+     */
+    public synchronized void reload() throws IOException {
+        FileTime modified = Files.getLastModifiedTime(file);
+        rules = parse(Files.readAllLines(file, StandardCharsets.UTF_8));
+        loadedModified = modified;
+    }
+
+    /**
+     * Reloads the rules whenever the file changes, checking every period
+     */
+    public synchronized void watch(long period, TimeUnit unit) {
+        if (watcher != null) {
+            return;
+        }
+        watcher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "content-filter-reload");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        watcher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (!Files.getLastModifiedTime(file).equals(loadedModified)) {
+                        reload();
+                        LOGGER.log(Level.INFO, "Reloaded content filter rules from {0}", file);
+                    }
+                } catch (IOException | RuntimeException ex) {
+                    LOGGER.log(Level.WARNING, "Cannot reload content filter rules, keeping the current ones", ex);
+                }
+            }
+        }, period, period, unit);
+    }
+
+    public synchronized void shutdown() {
+        if (watcher != null) {
+            watcher.shutdown();
+            watcher = null;
+        }
+    }
+
+    static Rules parse(List<String> lines) throws IOException {
+        List<String> globalPatterns = new ArrayList<>();
+        List<Integer> globalActions = new ArrayList<>();
+        Map<String, List<String>> channelPatterns = new HashMap<>();
+        Map<String, List<Integer>> channelActions = new HashMap<>();
+        List<String> patterns = globalPatterns;
+        List<Integer> actions = globalActions;
+        int lineNumber = 0;
+        for (String line : lines) {
+            ++lineNumber;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            if (line.startsWith("[") && line.endsWith("]")) {
+                String channel = line.substring(1, line.length() - 1).trim();
+                if (!channelPatterns.containsKey(channel)) {
+                    channelPatterns.put(channel, new ArrayList<String>());
+                    channelActions.put(channel, new ArrayList<Integer>());
+                }
+                patterns = channelPatterns.get(channel);
+                actions = channelActions.get(channel);
+                continue;
+            }
+            int space = line.indexOf(' ');
+            Action action;
+            try {
+                action = Action.valueOf(line.substring(0, space < 0 ? line.length() : space).toUpperCase());
+            } catch (IllegalArgumentException ex) {
+                throw new IOException("Unknown action at line " + lineNumber + ": " + line);
+            }
+            String pattern = space < 0 ? "" : line.substring(space + 1).trim();
+            if (pattern.isEmpty()) {
+                throw new IOException("Missing pattern at line " + lineNumber + ": " + line);
+            }
+            patterns.add(pattern);
+            actions.add(action.ordinal());
+        }
+
+        List<String[]> patternSets = new ArrayList<>();
+        patternSets.add(globalPatterns.toArray(new String[globalPatterns.size()]));
+        for (List<String> channel : channelPatterns.values()) {
+            patternSets.add(channel.toArray(new String[channel.size()]));
+        }
+        char[] classOf = AhoCorasick.charClasses(patternSets.toArray(new String[patternSets.size()][]));
+
+        Map<String, AhoCorasick> channels = new HashMap<>();
+        for (Map.Entry<String, List<String>> entry : channelPatterns.entrySet()) {
+            if (!entry.getValue().isEmpty()) {
+                channels.put(entry.getKey(), compile(entry.getValue(), channelActions.get(entry.getKey()), classOf));
+            }
+        }
+        return new Rules(compile(globalPatterns, globalActions, classOf), channels);
+    }
+
+    private static AhoCorasick compile(List<String> patterns, List<Integer> actions, char[] classOf) {
+        int[] payloads = new int[actions.size()];
+        for (int i = 0; i < payloads.length; ++i) {
+            payloads[i] = actions.get(i);
+        }
+        return new AhoCorasick(patterns.toArray(new String[patterns.size()]), payloads, classOf);
+    }
+
+    @Override
+    public String filter(String channel, User user, String message) throws IRCException {
+        Rules current = rules;
+        AhoCorasick global = current.global;
+        AhoCorasick local = current.forChannel(channel);
+        Verdict verdict = new Verdict(message);
+        int state = 0;
+        int localState = 0;
+        for (int i = 0; i < message.length(); ++i) {
+            int charClass = global.charClass(message.charAt(i));
+            state = global.step(state, charClass);
+            verdict.matched(global, state, i);
+            if (local != null) {
+                localState = local.step(localState, charClass);
+                verdict.matched(local, localState, i);
+            }
+        }
+        int severity = verdict.severity;
+        boolean flag = verdict.flag;
+        char[] chars = verdict.chars;
+        if (severity == Action.DROP.ordinal()) {
+            dropped.incrementAndGet();
+            throw new MessageBlockedException();
+        }
+        if (flag) {
+            flagged.incrementAndGet();
+            LOGGER.log(Level.INFO, "Flagged message on {0} from {1}: {2}",
+                    new Object[] {channel, user != null ? user.getUsername() : null, message});
+        }
+        if (chars != null) {
+            redacted.incrementAndGet();
+            return new String(chars);
+        }
+        return message;
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getRedacted() {
+        return redacted.get();
+    }
+
+    public long getFlagged() {
+        return flagged.get();
+    }
+}
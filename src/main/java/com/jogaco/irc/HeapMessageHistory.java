@@ -0,0 +1,72 @@
+package com.jogaco.irc;
+
+/**
+ * History kept as UserMessage objects on the heap
+ */
+public class HeapMessageHistory implements MessageHistory {
+    private final LimitedSizeQueue<UserMessage> messages;
+
+    public HeapMessageHistory(int size, final EvictionListener listener) {
+        messages = new LimitedSizeQueue<UserMessage>(size) {
+            @Override
+            protected void evicted(UserMessage msg) {
+                listener.evicted(HistoryBudget.sizeOf(msg));
+            }
+        };
+    }
+
+    @Override
+    public long add(UserMessage msg) {
+        messages.add(msg);
+        return HistoryBudget.sizeOf(msg);
+    }
+
+    @Override
+    public int size() {
+        return messages.size();
+    }
+
+    @Override
+    public UserMessage get(int index) {
+        return messages.get(index);
+    }
+
+    @Override
+    public long firstSequence() {
+        return messages.get(0).getSequence();
+    }
+
+    @Override
+    public void replay(StringBuilder builder) {
+        for (UserMessage usrMsg : messages) {
+            builder.append(usrMsg.getFormattedMessage());
+        }
+    }
+
+    @Override
+    public void replaySince(long sequence, StringBuilder builder) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        for (int i = (int) Math.max(sequence - firstSequence(), 0); i < messages.size(); ++i) {
+            UserMessage msg = messages.get(i);
+            builder.append(msg.getSequence()).append(UserMessage.SEQUENCE_SEPARATOR).append(msg.getFormattedMessage());
+        }
+    }
+
+    @Override
+    public int getMaxSize() {
+        return messages.getMaxSize();
+    }
+
+    @Override
+    public void setMaxSize(int size) {
+        messages.setMaxSize(size);
+    }
+
+    @Override
+    public void clear() {
+        messages.clear();
+        messages.trimToSize();
+    }
+}
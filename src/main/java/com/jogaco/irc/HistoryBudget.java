@@ -0,0 +1,219 @@
+package com.jogaco.irc;
+
+import com.jogaco.irc.IRCServer.Chat;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Server-wide byte budget shared by the message history of every channel.
+ *
+ * Channels start with {@link #getInitialMessages()} history slots. A channel that
+ * turns over its whole history within {@link #ACTIVE_WINDOW_NANOS} doubles its
+ * capacity (up to {@link #getMaxMessages()}) while the budget has room; one that
+ * needs longer than {@link #COLD_WINDOW_NANOS} halves it (down to
+ * {@link #getMinMessages()}), also when it has gone quiet, as found by a sweep
+ * run at most every {@link #SWEEP_INTERVAL_NANOS}. When the budget is exceeded,
+ * the history of the least recently active channel among a sample of
+ * {@link #SAMPLE_SIZE} is released, until usage is back under
+ * {@link #LOW_WATER_MARK} of the budget, so the pressure does not return with
+ * the next message.
+ *
+ * Charging takes no lock: channels keep their own last activity time, and the
+ * sweep and the eviction walk the tracked channels like a clock hand. Only one
+ * thread walks at a time; others skip rather than wait.
+ *
+ * Lock order: the hand lock, then a Chat's history lock.
+ */
+public class HistoryBudget implements HistoryBudgetMBean {
+    public static final long DEFAULT_MAX_BYTES = 256L << 20;
+    static final long ACTIVE_WINDOW_NANOS = TimeUnit.MINUTES.toNanos(1);
+    static final long COLD_WINDOW_NANOS = TimeUnit.HOURS.toNanos(1);
+    // Only deepen histories while below this share of the budget
+    static final double GROWTH_THRESHOLD = 0.75;
+    static final long SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    // Channels visited per sweep, at least; enough for a whole turn each minute
+    static final int SWEEP_BATCH = 64;
+    static final int SWEEPS_PER_TURN = 60;
+    static final int SAMPLE_SIZE = 8;
+    // Eviction stops once usage is below this share of the budget
+    static final double LOW_WATER_MARK = 0.9;
+
+    private final long maxBytes;
+    private final int minMessages;
+    private final int initialMessages;
+    private final int maxMessages;
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final AtomicLong evictedChannels = new AtomicLong();
+    // Channels holding history
+    private final Set<Chat> channels = ConcurrentHashMap.newKeySet();
+    private final ReentrantLock handLock = new ReentrantLock();
+    // Guarded by handLock
+    private Iterator<Chat> hand;
+    private final AtomicLong lastSweepNanos = new AtomicLong(System.nanoTime());
+
+    public HistoryBudget(long maxBytes) {
+        this(maxBytes, ServerContext.MAX_MESSAGES / 4, ServerContext.MAX_MESSAGES, ServerContext.MAX_MESSAGES * 8);
+    }
+
+    public HistoryBudget(long maxBytes, int minMessages, int initialMessages, int maxMessages) {
+        this.maxBytes = maxBytes;
+        this.minMessages = minMessages;
+        this.initialMessages = initialMessages;
+        this.maxMessages = maxMessages;
+    }
+
+    /**
+     * Estimated heap retained by a history entry: the UserMessage, its text and
+     * its formatted copy (the User is shared)
+     */
+    static long sizeOf(UserMessage msg) {
+        return 96 + 2L * msg.getMessage().length() + msg.getUsername().length();
+    }
+
+    /**
+     * Starts tracking a channel that now holds history
+     */
+    void track(Chat chat) {
+        channels.add(chat);
+    }
+
+    void untrack(Chat chat) {
+        channels.remove(chat);
+    }
+
+    void charge(long bytes) {
+        usedBytes.addAndGet(bytes);
+    }
+
+    void refund(long bytes) {
+        usedBytes.addAndGet(-bytes);
+    }
+
+    /**
+     * New capacity for a history that took elapsedNanos to turn over completely
+     */
+    int adapt(int capacity, long elapsedNanos) {
+        if (elapsedNanos < ACTIVE_WINDOW_NANOS && usedBytes.get() < maxBytes * GROWTH_THRESHOLD) {
+            return Math.min(capacity * 2, maxMessages);
+        } else if (elapsedNanos > COLD_WINDOW_NANOS) {
+            return Math.max(capacity / 2, minMessages);
+        }
+        return capacity;
+    }
+
+    /**
+     * Evicts when the budget is exceeded, and shrinks quiet channels when a
+     * sweep is due. Must not be called while holding a history lock.
+     */
+    void reclaim(Chat current) {
+        if (usedBytes.get() > maxBytes) {
+            evict(current);
+        }
+        long now = System.nanoTime();
+        long last = lastSweepNanos.get();
+        if (now - last >= SWEEP_INTERVAL_NANOS && lastSweepNanos.compareAndSet(last, now)) {
+            sweep(now);
+        }
+    }
+
+    /**
+     * Halves the capacity of the quiet channels under the hand
+     */
+    void sweep(long now) {
+        if (!handLock.tryLock()) {
+            return;
+        }
+        try {
+            int batch = Math.min(channels.size(), Math.max(SWEEP_BATCH, channels.size() / SWEEPS_PER_TURN));
+            for (int i = 0; i < batch; ++i) {
+                Chat chat = nextChannel();
+                if (chat != null) {
+                    chat.shrinkIfIdle(now);
+                }
+            }
+        } finally {
+            handLock.unlock();
+        }
+    }
+
+    /**
+     * Releases sampled least recently active channels (never current) until
+     * usage is under the low-water mark
+     */
+    void evict(Chat current) {
+        if (!handLock.tryLock()) {
+            return;
+        }
+        try {
+            long lowWater = (long) (maxBytes * LOW_WATER_MARK);
+            while (usedBytes.get() > lowWater) {
+                Chat victim = null;
+                int sample = Math.min(SAMPLE_SIZE, channels.size());
+                for (int i = 0; i < sample; ++i) {
+                    Chat chat = nextChannel();
+                    if (chat != null && chat != current && chat.historyBytes() > 0
+                            && (victim == null || chat.lastActiveNanos() - victim.lastActiveNanos() < 0)) {
+                        victim = chat;
+                    }
+                }
+                if (victim == null) {
+                    return;
+                }
+                victim.releaseHistory();
+                evictedChannels.incrementAndGet();
+            }
+        } finally {
+            handLock.unlock();
+        }
+    }
+
+    /**
+     * Advances the hand, wrapping around; null when no channel is tracked.
+     * Called holding handLock.
+     */
+    private Chat nextChannel() {
+        if (hand == null || !hand.hasNext()) {
+            hand = channels.iterator();
+            if (!hand.hasNext()) {
+                return null;
+            }
+        }
+        return hand.next();
+    }
+
+    int getMinMessages() {
+        return minMessages;
+    }
+
+    int getInitialMessages() {
+        return initialMessages;
+    }
+
+    int getMaxMessages() {
+        return maxMessages;
+    }
+
+    @Override
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    @Override
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    @Override
+    public int getChannels() {
+        return channels.size();
+    }
+
+    @Override
+    public long getEvictedChannels() {
+        return evictedChannels.get();
+    }
+}
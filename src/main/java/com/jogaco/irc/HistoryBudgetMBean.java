@@ -0,0 +1,18 @@
+package com.jogaco.irc;
+
+public interface HistoryBudgetMBean {
+
+    long getMaxBytes();
+
+    long getUsedBytes();
+
+    /**
+     * Channels currently holding history
+     */
+    int getChannels();
+
+    /**
+     * Channels whose whole history was released to stay within budget
+     */
+    long getEvictedChannels();
+}
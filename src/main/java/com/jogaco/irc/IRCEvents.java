@@ -0,0 +1,107 @@
+package com.jogaco.irc;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder events of the server. All are disabled unless a recording
+ * enables them, e.g. -XX:StartFlightRecording with a settings file turning on
+ * com.jogaco.irc.*; while disabled, begin/commit compile to nothing.
+ */
+public final class IRCEvents {
+
+    private IRCEvents() {
+    }
+
+    @Name("com.jogaco.irc.Command")
+    @Label("Command")
+    @Category("IRC")
+    @Description("A client command handled by IRCServer.handleCommand")
+    @Enabled(false)
+    public static class CommandEvent extends Event {
+        @Label("Command Type")
+        String command;
+    }
+
+    @Name("com.jogaco.irc.FanOut")
+    @Label("Message Fan-out")
+    @Category("IRC")
+    @Description("A channel message delivered to the other members")
+    @Enabled(false)
+    public static class FanOutEvent extends Event {
+        @Label("Channel")
+        String channel;
+
+        @Label("Recipients")
+        int recipients;
+    }
+
+    @Name("com.jogaco.irc.Join")
+    @Label("Channel Join")
+    @Category("IRC")
+    @Enabled(false)
+    public static class JoinEvent extends Event {
+        @Label("Channel")
+        String channel;
+
+        @Label("User")
+        String user;
+
+        @Label("Members")
+        int members;
+    }
+
+    @Name("com.jogaco.irc.Leave")
+    @Label("Channel Leave")
+    @Category("IRC")
+    @Enabled(false)
+    public static class LeaveEvent extends Event {
+        @Label("Channel")
+        String channel;
+
+        @Label("User")
+        String user;
+
+        @Label("Members")
+        int members;
+    }
+
+    @Name("com.jogaco.irc.OutboundStall")
+    @Label("Outbound Stall")
+    @Category("IRC")
+    @Description("A connection whose outbound buffer stayed above the high water mark")
+    @Enabled(false)
+    public static class OutboundStallEvent extends Event {
+        @Label("Remote Address")
+        String remoteAddress;
+
+        @Label("User")
+        String user;
+    }
+
+    @Name("com.jogaco.irc.LoopStall")
+    @Label("Event Loop Stall")
+    @Category("IRC")
+    @Description("An event loop that did not run a heartbeat task within the stall threshold")
+    @Enabled(false)
+    public static class LoopStallEvent extends Event {
+        @Label("Loop Thread")
+        String loop;
+
+        @Label("Blocked Millis")
+        long blockedMillis;
+
+        @Label("Command Type")
+        String command;
+
+        @Label("Channel")
+        String channel;
+
+        @Label("Sampled Stack")
+        String stack;
+    }
+}
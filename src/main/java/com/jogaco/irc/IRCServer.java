@@ -2,13 +2,17 @@ package com.jogaco.irc;
 
 import io.netty.bootstrap.ServerBootstrap;
 
+import io.netty.channel.AdaptiveRecvByteBufAllocator;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
+import java.io.File;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -16,6 +20,15 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.ObjectName;
 
 /*
 IRCServer
@@ -24,10 +37,13 @@ Client: telnet
 Client Commands:
 
 /login name password — if user not exists create profile else login
-/join channel —try to join channel (max 10 active clients per channel is needed)
+/join channel [since N] —try to join channel (max 10 active clients per channel is needed)
     If client’s limit exceeded - send error, otherwise join channel and send last N messages of activity
+    With "since N", only messages after sequence number N are sent, and messages are numbered from then on
 /leave - disconnect client
 /users — show users in the channel
+/search term — show the most recent messages of the channel containing term
+/list [prefix] — show the channels starting with prefix, or the most popular ones
 text message terminated with CR - sends message to current channel.
     Server must send new message to all connected to this channel clients.
 */
@@ -36,7 +52,20 @@ public class IRCServer implements ServerContext {
     private int port;
     private final CommandDecoder commandDecoder;
     private final Map<String, Chat> chats;
+    private final ChannelDirectory channelDirectory;
     private final Map<String, User> users;
+    private ExecutorService blockingCommandExecutor;
+    private int tlsPort;
+    private TlsChannelInitializer tlsInitializer;
+    private HistoryBudget historyBudget;
+    private long presenceWindowMillis;
+    private ScheduledExecutorService presenceScheduler;
+    private MessageSlab messageSlab;
+    private AdmissionControl admissionControl;
+    private volatile MessageFilter messageFilter;
+    private CommandScheduler commandScheduler;
+    private boolean compactConnections;
+    private LoopWatchdog loopWatchdog;
 
     @Override
     public Chat getOrCreateChat(String name) {
@@ -86,6 +115,8 @@ public class IRCServer implements ServerContext {
         private final Command LOGOUT_COMMAND = new LogoutCommand();
         private final Command USERS_COMMAND = new UsersCommand();
         private final Command MESSAGE_COMMAND = new MessageCommand();
+        private final Command SEARCH_COMMAND = new SearchCommand();
+        private final Command LIST_COMMAND = new ListCommand();
         
         Command getCommand(String command) {
             if (command != null && !command.isEmpty()) {
@@ -97,6 +128,10 @@ public class IRCServer implements ServerContext {
                     return LOGOUT_COMMAND;
                 } else if (command.equals("/users")) {
                     return USERS_COMMAND;
+                } else if (command.startsWith("/search ") || command.equals("/search")) {
+                    return SEARCH_COMMAND;
+                } else if (command.startsWith("/list ") || command.equals("/list")) {
+                    return LIST_COMMAND;
                 } else {
                     return MESSAGE_COMMAND;
                 }
@@ -107,16 +142,33 @@ public class IRCServer implements ServerContext {
     
     interface Command {
         
-        void run(ClientContext clientContext, ServerContext serverContext, String command) throws IRCException;
+        /**
+         * @return the response to send back, null for none
+         */
+        String run(ClientContext clientContext, ServerContext serverContext, String command) throws IRCException;
+    }
+
+    /**
+     * Marks commands that may block (disk, slow computation). They run on a
+     * virtual thread when virtual-thread commands are enabled.
+     */
+    interface BlockingCommand extends Command {
+    }
+
+    /**
+     * Marks chat traffic. When a {@link CommandScheduler} is set, its delivery
+     * to the channel yields to control commands.
+     */
+    interface BulkCommand extends Command {
     }
     
-    class LoginCommand implements Command {
+    class LoginCommand implements BlockingCommand {
         
         static final String MISSING_PARAMS = "Error: /login user passwd\n";
         static final String SUCCESS = "Welcome\n";
 
         @Override
-        public void run(ClientContext clientContext, ServerContext serverContext, String command) throws IRCException {
+        public String run(ClientContext clientContext, ServerContext serverContext, String command) throws IRCException {
             String[] params = command.split(" ");
             if (params.length == 3) {
                 User user = new User(params[1], params[2]);
@@ -126,7 +178,7 @@ public class IRCServer implements ServerContext {
                     throw new UserWrongPasswordException();
                 }
                 clientContext.setUser(user);
-                clientContext.setOutput(SUCCESS);
+                return SUCCESS;
             } else {
                 throw new ErrorInCommandException(MISSING_PARAMS);
             }
@@ -137,32 +189,48 @@ public class IRCServer implements ServerContext {
         static final String SUCCESS = "Goodbye\n";
 
         @Override
-        public void run(ClientContext clientContext, ServerContext serverContext, String command) throws IRCException {
+        public String run(ClientContext clientContext, ServerContext serverContext, String command) throws IRCException {
             serverContext.logout(clientContext);
-            clientContext.setOutput(SUCCESS);
+            return SUCCESS;
         }
         
     }
     
-    class ChannelCommand implements Command {
-        static final String MISSING_PARAMS = "Error: /join channel_name\n";
+    class ChannelCommand implements BlockingCommand {
+        static final String MISSING_PARAMS = "Error: /join channel_name [since N]\n";
+        static final String SINCE = "since";
 
         @Override
-        public void run(ClientContext clientContext, ServerContext serverContext, String command) throws IRCException {
+        public String run(ClientContext clientContext, ServerContext serverContext, String command) throws IRCException {
             if (clientContext.getUser() == null) {
                 throw new LoginRequiredException();
             }
             String[] params = command.split(" ");
-            if (params.length == 2) {
+            long since = -1;
+            if (params.length == 4 && params[2].equals(SINCE)) {
+                try {
+                    since = Long.parseLong(params[3]);
+                } catch (NumberFormatException ex) {
+                    throw new ErrorInCommandException(MISSING_PARAMS);
+                }
+                if (since < 0) {
+                    throw new ErrorInCommandException(MISSING_PARAMS);
+                }
+            }
+            if (params.length == 2 || since >= 0) {
                 Chat chat = serverContext.getOrCreateChat(params[1]);
                 chat.join(clientContext);
+                if (since >= 0) {
+                    clientContext.setSequenced(true);
+                }
 
-                final List<UserMessage> messages = chat.getMessages();
                 StringBuilder builder = new StringBuilder();
-                for (UserMessage usrMsg : messages) {
-                    builder.append(usrMsg.getFormattedMessage());
+                if (clientContext.isSequenced()) {
+                    chat.replayHistorySince(Math.max(since, 0), builder);
+                } else {
+                    chat.replayHistory(builder);
                 }
-                clientContext.setOutput(builder.toString());
+                return builder.toString();
                 
             } else {
                 throw new ErrorInCommandException(MISSING_PARAMS);
@@ -174,7 +242,7 @@ public class IRCServer implements ServerContext {
     class UsersCommand implements Command {
 
         @Override
-        public void run(ClientContext clientContext, ServerContext serverContext, String command) throws IRCException {
+        public String run(ClientContext clientContext, ServerContext serverContext, String command) throws IRCException {
             Chat chat = clientContext.getCurrentChannel();
             StringBuilder builder = new StringBuilder();
             if (chat != null) {
@@ -184,43 +252,124 @@ public class IRCServer implements ServerContext {
                     builder.append(System.lineSeparator());
                 }
             }
-            clientContext.setOutput(builder.toString());
+            return builder.toString();
         }
         
     }
     
-    class MessageCommand implements Command {
+    class SearchCommand implements Command {
+        static final String MISSING_PARAMS = "Error: /search term\n";
 
         @Override
-        public void run(ClientContext clientContext, ServerContext serverContext, String command) throws IRCException {
+        public String run(ClientContext clientContext, ServerContext serverContext, String command) throws IRCException {
+            String[] params = command.split(" ");
+            if (params.length != 2) {
+                throw new ErrorInCommandException(MISSING_PARAMS);
+            }
             Chat chat = clientContext.getCurrentChannel();
+            StringBuilder builder = new StringBuilder();
             if (chat != null) {
+                for (UserMessage usrMsg : chat.search(params[1], ServerContext.MAX_SEARCH_RESULTS)) {
+                    builder.append(usrMsg.getFormattedMessage());
+                }
+            }
+            return builder.toString();
+        }
+
+    }
+    
+    class ListCommand implements Command {
+        static final String MISSING_PARAMS = "Error: /list [prefix]\n";
+
+        @Override
+        public String run(ClientContext clientContext, ServerContext serverContext, String command) throws IRCException {
+            String[] params = command.split(" ");
+            List<ChannelDirectory.Entry> channels;
+            if (params.length == 1) {
+                channels = channelDirectory.top(ServerContext.MAX_LIST_RESULTS);
+            } else if (params.length == 2) {
+                channels = channelDirectory.withPrefix(params[1], ServerContext.MAX_LIST_RESULTS);
+            } else {
+                throw new ErrorInCommandException(MISSING_PARAMS);
+            }
+            StringBuilder builder = new StringBuilder();
+            for (ChannelDirectory.Entry channel : channels) {
+                builder.append(channel.getName()).append(' ').append(channel.getMembers());
+                builder.append(System.lineSeparator());
+            }
+            return builder.toString();
+        }
+
+    }
+
+    class MessageCommand implements BulkCommand {
+
+        @Override
+        public String run(ClientContext clientContext, ServerContext serverContext, String command) throws IRCException {
+            Chat chat = clientContext.getCurrentChannel();
+            if (chat != null) {
+                MessageFilter filter = messageFilter;
+                if (filter != null) {
+                    command = filter.filter(chat.getName(), clientContext.getUser(), command);
+                }
                 chat.sendMessage(command, clientContext);
             }
-            clientContext.setOutput("");
+            return null;
         }
         
     }
     
     class Chat {
+        static final String HISTORY_GAP = "Some messages are no longer available\n";
+
         final private String name;
         final private Set<User> users;
-        final private List<UserMessage> messages;
         final private Set<ClientContext> clients;
+        final private SearchIndex searchIndex;
+        final private HistoryBudget budget;
+        final private MessageHistory history;
+        // Sequence numbers start at 1 so that "since 0" means everything
+        private long nextSequence = 1;
+        // Guarded by history; volatile for the budget's eviction scan
+        private volatile long historyBytes;
+        // Written with the history lock held, read by the budget sweep
+        private volatile long lastActiveNanos;
+        // Guarded by history: whether the budget tracks this channel
+        private boolean budgeted;
+        private int turnover;
+        private long turnoverStart;
+        // Guarded by users; allocated on the first join
+        private PresenceBatch presence;
+        private boolean presenceScheduled;
         
         Chat(String name) {
             this.name = name;
             users = new LinkedHashSet<>(ServerContext.MAX_CLIENTS_PER_CHANNEL);
-            messages =  Collections.synchronizedList(new LimitedSizeQueue<UserMessage>(ServerContext.MAX_MESSAGES));
+            searchIndex = new SearchIndex();
+            budget = historyBudget;
+            history = newHistory(budget.getInitialMessages(), new MessageHistory.EvictionListener() {
+                @Override
+                public void evicted(long bytes) {
+                    historyBytes -= bytes;
+                    budget.refund(bytes);
+                }
+            });
+            turnoverStart = System.nanoTime();
+            lastActiveNanos = turnoverStart;
             clients = Collections.synchronizedSet(new LinkedHashSet<ClientContext>(ServerContext.MAX_CLIENTS_PER_CHANNEL));
         }
 
+        String getName() {
+            return name;
+        }
+
         int maxClientsPerChannel() {
             return ServerContext.MAX_CLIENTS_PER_CHANNEL;
         }
 
         void join(ClientContext client) throws ChannelMaxUsersException {
             User user = client.getUser();
+            int members;
 
             synchronized (users) {
                 if (users.contains(user)) {
@@ -231,20 +380,121 @@ public class IRCServer implements ServerContext {
                 }
                 users.add(user);
                 clients.add(client);
+                members = users.size();
+                channelDirectory.update(name, members);
+                if (presenceWindowMillis > 0) {
+                    presence().joined(user.getUsername());
+                }
             }
 
             client.setCurrentChannel(this);
+
+            IRCEvents.JoinEvent event = new IRCEvents.JoinEvent();
+            if (event.shouldCommit()) {
+                event.channel = name;
+                event.user = user.getUsername();
+                event.members = members;
+                event.commit();
+            }
+        }
+
+        /**
+         * Pending presence changes, scheduling their delivery at the end of
+         * the window. Called holding the users lock.
+         */
+        private PresenceBatch presence() {
+            if (presence == null) {
+                presence = new PresenceBatch();
+            }
+            if (!presenceScheduled) {
+                presenceScheduled = true;
+                presenceScheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flushPresence();
+                    }
+                }, presenceWindowMillis, TimeUnit.MILLISECONDS);
+            }
+            return presence;
         }
 
-        synchronized public List<UserMessage> getMessages() {
-            return messages;
+        /**
+         * Sends the joins and leaves of the window to the members as one line
+         */
+        void flushPresence() {
+            String line;
+            synchronized (users) {
+                presenceScheduled = false;
+                if (presence == null || presence.isEmpty()) {
+                    return;
+                }
+                line = presence.drain();
+            }
+            synchronized (clients) {
+                for (ClientContext client : clients) {
+                    client.notify(line);
+                }
+            }
+        }
+
+        /**
+         * Copy of the retained messages, oldest first
+         */
+        public List<UserMessage> getMessages() {
+            synchronized (history) {
+                List<UserMessage> messages = new ArrayList<>(history.size());
+                for (int i = 0; i < history.size(); ++i) {
+                    messages.add(history.get(i));
+                }
+                return messages;
+            }
+        }
+
+        void replayHistory(StringBuilder builder) {
+            synchronized (history) {
+                history.replay(builder);
+            }
+        }
+
+        /**
+         * Appends the numbered messages after sequence, preceded by
+         * {@link Chat#HISTORY_GAP} if some of them are no longer retained
+         */
+        void replayHistorySince(long sequence, StringBuilder builder) {
+            synchronized (history) {
+                long first = history.size() > 0 ? history.firstSequence() : nextSequence;
+                if (sequence + 1 < first) {
+                    builder.append(HISTORY_GAP);
+                }
+                history.replaySince(Math.max(sequence + 1, first), builder);
+            }
         }
 
         void leave(ClientContext client) {
             User user = client.getUser();
+            boolean removed;
+            int members;
             synchronized (users) {
-                users.remove(user);
+                removed = users.remove(user);
+                if (removed) {
+                    channelDirectory.update(name, users.size());
+                    if (presenceWindowMillis > 0) {
+                        presence().left(user.getUsername());
+                    }
+                }
                 clients.remove(client);
+                members = users.size();
+            }
+            if (!removed) {
+                return;
+            }
+
+            IRCEvents.LeaveEvent event = new IRCEvents.LeaveEvent();
+            if (event.shouldCommit()) {
+                event.channel = name;
+                event.user = user != null ? user.getUsername() : null;
+                event.members = members;
+                event.commit();
             }
         }
 
@@ -252,69 +502,386 @@ public class IRCServer implements ServerContext {
             return new ArrayList<>(users);
         }
 
+        /**
+         * Resizes the history each time it has turned over completely. Called
+         * holding the history lock.
+         */
+        private void adaptCapacity() {
+            if (++turnover >= history.getMaxSize()) {
+                long now = System.nanoTime();
+                history.setMaxSize(budget.adapt(history.getMaxSize(), now - turnoverStart));
+                searchIndex.retainFrom(history.firstSequence());
+                turnover = 0;
+                turnoverStart = now;
+            }
+        }
+
+        /**
+         * Halves the capacity of a history that has gone quiet, which
+         * adaptCapacity only notices as messages arrive. Called by the budget
+         * sweep.
+         */
+        void shrinkIfIdle(long now) {
+            if (now - lastActiveNanos <= HistoryBudget.COLD_WINDOW_NANOS) {
+                return;
+            }
+            synchronized (history) {
+                if (history.size() > 0 && now - turnoverStart > HistoryBudget.COLD_WINDOW_NANOS) {
+                    history.setMaxSize(budget.adapt(history.getMaxSize(), now - turnoverStart));
+                    searchIndex.retainFrom(history.firstSequence());
+                    turnover = 0;
+                    turnoverStart = now;
+                }
+            }
+        }
+
+        int historyCapacity() {
+            synchronized (history) {
+                return history.getMaxSize();
+            }
+        }
+
+        long historyBytes() {
+            return historyBytes;
+        }
+
+        long lastActiveNanos() {
+            return lastActiveNanos;
+        }
+
+        /**
+         * Drops the whole history, returning its bytes to the budget
+         */
+        void releaseHistory() {
+            synchronized (history) {
+                history.clear();
+                history.setMaxSize(budget.getMinMessages());
+                searchIndex.clear();
+                budget.refund(historyBytes);
+                historyBytes = 0;
+                if (budgeted) {
+                    budgeted = false;
+                    budget.untrack(this);
+                }
+                turnover = 0;
+                turnoverStart = System.nanoTime();
+            }
+        }
+
+        /**
+         * Most recent retained messages containing term, oldest first
+         */
+        List<UserMessage> search(String term, int limit) {
+            synchronized (history) {
+                long[] sequences = searchIndex.search(term, limit);
+                List<UserMessage> found = new ArrayList<>(sequences.length);
+                if (sequences.length > 0 && history.size() > 0) {
+                    long first = history.firstSequence();
+                    for (long sequence : sequences) {
+                        // the index may lag behind an eviction
+                        if (sequence >= first && sequence - first < history.size()) {
+                            found.add(history.get((int) (sequence - first)));
+                        }
+                    }
+                }
+                return found;
+            }
+        }
+
         void sendMessage(String command, ClientContext clientContext) {
             if (clientContext.getUser() != null) {
-                UserMessage userMsg = new UserMessage(clientContext.getUser(), command);
+                UserMessage userMsg;
 
-                synchronized (messages) {
-                    messages.add(userMsg);
+                synchronized (history) {
+                    userMsg = new UserMessage(clientContext.getUser(), command, nextSequence++);
+                    long size = history.add(userMsg);
+                    searchIndex.add(userMsg);
+                    historyBytes += size;
+                    lastActiveNanos = System.nanoTime();
+                    budget.charge(size);
+                    if (!budgeted) {
+                        budgeted = true;
+                        budget.track(this);
+                    }
+                    searchIndex.retainFrom(history.firstSequence());
+                    adaptCapacity();
                 }
+                budget.reclaim(this);
 
+                CommandScheduler scheduler = commandScheduler;
+                if (scheduler != null) {
+                    ClientContext[] recipients;
+                    synchronized (clients) {
+                        recipients = clients.toArray(new ClientContext[clients.size()]);
+                    }
+                    scheduler.fanOut(name, userMsg, clientContext, recipients);
+                    return;
+                }
+
+                IRCEvents.FanOutEvent event = new IRCEvents.FanOutEvent();
+                event.begin();
+                int recipients = 0;
                 synchronized (clients) {
                     for (ClientContext otherClient : clients) {
                         if (clientContext != otherClient) {
                             otherClient.notify(userMsg);
+                            ++recipients;
                         }
                     }
                 }
+                event.end();
+                if (event.shouldCommit()) {
+                    event.channel = name;
+                    event.recipients = recipients;
+                    event.commit();
+                }
             }
         }
     }
 
+    // Receive buffers for compact connections: chat lines are short
+    static final int COMPACT_MIN_RECEIVE = 64;
+    static final int COMPACT_INITIAL_RECEIVE = 256;
+    static final int COMPACT_MAX_RECEIVE = 4096;
+    // Kernel socket buffers for compact connections
+    static final int COMPACT_SOCKET_BUFFER = 8192;
+    static final int COMPACT_BACKLOG = 4096;
+
     public IRCServer(int port) {
         this.port = port;
         this.commandDecoder = new CommandDecoder();
         chats = new HashMap<>();
+        channelDirectory = new ChannelDirectory();
         users = new HashMap<>();
+        historyBudget = new HistoryBudget(HistoryBudget.DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Announces joins and leaves to channel members, coalesced per channel over
+     * the given window. 0 disables presence notifications.
+     */
+    public void setPresenceWindow(long millis) {
+        presenceWindowMillis = millis;
+        if (millis > 0 && presenceScheduler == null) {
+            presenceScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "presence");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+    }
+
+    /**
+     * Keeps channel history in the given off-heap slab instead of the heap;
+     * affects channels created afterwards
+     */
+    public void setMessageSlab(MessageSlab messageSlab) {
+        this.messageSlab = messageSlab;
+    }
+
+    MessageHistory newHistory(int size, MessageHistory.EvictionListener listener) {
+        if (messageSlab != null) {
+            return new OffHeapMessageHistory(messageSlab, size, listener);
+        }
+        return new HeapMessageHistory(size, listener);
+    }
+
+    /**
+     * Replaces the history budget; affects channels created afterwards
+     */
+    public void setHistoryBudget(HistoryBudget historyBudget) {
+        this.historyBudget = historyBudget;
+    }
+
+    /**
+     * Runs {@link BlockingCommand}s on virtual threads instead of the I/O threads
+     */
+    public void setVirtualThreadCommands(boolean enabled) {
+        if (enabled && blockingCommandExecutor == null) {
+            blockingCommandExecutor = Executors.newVirtualThreadPerTaskExecutor();
+        } else if (!enabled && blockingCommandExecutor != null) {
+            blockingCommandExecutor.shutdown();
+            blockingCommandExecutor = null;
+        }
     }
     
+    /**
+     * Sizes every connection for a large number of mostly idle clients: small
+     * receive and socket buffers, low write-buffer watermarks and a deep
+     * accept backlog
+     */
+    public void setCompactConnections(boolean compactConnections) {
+        this.compactConnections = compactConnections;
+    }
+
+    /**
+     * Watches the worker event loops for stalls; null disables the watchdog
+     */
+    public void setLoopWatchdog(LoopWatchdog loopWatchdog) {
+        this.loopWatchdog = loopWatchdog;
+    }
+
+    /**
+     * Gives control commands priority over chat fan-out; null delivers chat
+     * lines inline, as they are read
+     */
+    public void setCommandScheduler(CommandScheduler commandScheduler) {
+        this.commandScheduler = commandScheduler;
+    }
+
+    /**
+     * Filters channel messages before they are sent; null disables filtering
+     */
+    public void setMessageFilter(MessageFilter messageFilter) {
+        this.messageFilter = messageFilter;
+    }
+
+    /**
+     * Screens every accepted connection, on all listeners, before it gets a pipeline
+     */
+    public void setAdmissionControl(AdmissionControl admissionControl) {
+        this.admissionControl = admissionControl;
+    }
+
+    /**
+     * Also accepts TLS connections on the given port
+     */
+    public void enableTls(int tlsPort, TlsChannelInitializer tlsInitializer) {
+        this.tlsPort = tlsPort;
+        this.tlsInitializer = tlsInitializer;
+    }
+
+    static void registerMBean(Object mbean, String type) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, new ObjectName("com.jogaco.irc:type=" + type));
+        } catch (Exception ex) {
+            Logger.getLogger(IRCServer.class.getName()).log(Level.WARNING, "Cannot export " + type + " stats", ex);
+        }
+    }
+
+    /**
+     * Listener options shared by the plaintext and TLS listeners
+     */
+    private ServerBootstrap newBootstrap(EventLoopGroup bossGroup, EventLoopGroup childGroup) {
+        ServerBootstrap b = new ServerBootstrap();
+        b.group(bossGroup, childGroup)
+         .channel(NioServerSocketChannel.class)
+         .option(ChannelOption.SO_BACKLOG, 128)
+         .childOption(ChannelOption.SO_KEEPALIVE, true);
+        if (compactConnections) {
+            b.option(ChannelOption.SO_BACKLOG, COMPACT_BACKLOG)
+             .childOption(ChannelOption.RCVBUF_ALLOCATOR, new AdaptiveRecvByteBufAllocator(
+                     COMPACT_MIN_RECEIVE, COMPACT_INITIAL_RECEIVE, COMPACT_MAX_RECEIVE))
+             .childOption(ChannelOption.SO_RCVBUF, COMPACT_SOCKET_BUFFER)
+             .childOption(ChannelOption.SO_SNDBUF, COMPACT_SOCKET_BUFFER)
+             .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(
+                     COMPACT_SOCKET_BUFFER, 2 * COMPACT_SOCKET_BUFFER));
+        }
+        if (admissionControl != null) {
+            b.handler(admissionControl);
+        }
+        return b;
+    }
+
     public void run() throws Exception {
         EventLoopGroup bossGroup = new NioEventLoopGroup();
         EventLoopGroup workerGroup = new NioEventLoopGroup();
+        // Handshakes block their loop: TLS connections get loops of their own
+        EventLoopGroup tlsGroup = tlsInitializer != null ? new NioEventLoopGroup(tlsInitializer.getLoopThreads()) : null;
         try {
-            ServerBootstrap b = new ServerBootstrap();
-            b.group(bossGroup, workerGroup)
-             .channel(NioServerSocketChannel.class)
+            ServerBootstrap b = newBootstrap(bossGroup, workerGroup)
              .childHandler(new ChannelInitializer<SocketChannel>() {
                  @Override
                  public void initChannel(SocketChannel ch) throws Exception {
                      ch.pipeline().addLast(new IRCServerHandler(IRCServer.this));
                  }
-             })
-             .option(ChannelOption.SO_BACKLOG, 128)
-             .childOption(ChannelOption.SO_KEEPALIVE, true);
+             });
+            if (admissionControl != null) {
+                registerMBean(admissionControl, "AdmissionControl");
+            }
     
             // Bind and start to accept incoming connections.
             ChannelFuture f = b.bind(port).sync();
+            registerMBean(historyBudget, "HistoryBudget");
+            if (loopWatchdog != null) {
+                loopWatchdog.start(workerGroup);
+                if (tlsGroup != null) {
+                    loopWatchdog.start(tlsGroup);
+                }
+                registerMBean(loopWatchdog, "LoopWatchdog");
+            }
+            if (commandScheduler != null) {
+                registerMBean(commandScheduler, "CommandScheduler");
+            }
+
+            if (tlsInitializer != null) {
+                ServerBootstrap tls = newBootstrap(bossGroup, tlsGroup).childHandler(tlsInitializer);
+                tls.bind(tlsPort).sync();
+                registerMBean(tlsInitializer.getStats(), "Tls");
+            }
     
             // Wait until the server socket is closed.
             // shut down your server.
             f.channel().closeFuture().sync();
         } finally {
             workerGroup.shutdownGracefully();
+            if (tlsGroup != null) {
+                tlsGroup.shutdownGracefully();
+            }
             bossGroup.shutdownGracefully();
+            setVirtualThreadCommands(false);
+            if (loopWatchdog != null) {
+                loopWatchdog.stop();
+            }
+            if (presenceScheduler != null) {
+                presenceScheduler.shutdown();
+            }
+        }
+    }
+
+    @Override
+    public Executor getCommandExecutor(String command) {
+        Executor executor = blockingCommandExecutor;
+        if (executor != null && commandDecoder.getCommand(command.trim()) instanceof BlockingCommand) {
+            return executor;
         }
+        return null;
     }
 
     @Override
-    public void handleCommand(ClientContext clientContext, String command) throws IRCException {
+    public String handleCommand(ClientContext clientContext, String command) throws IRCException {
         command = command.trim();
         Command cmd = commandDecoder.getCommand(command);
         if (cmd != null) {
-            cmd.run(clientContext, this, command);
+            CommandScheduler scheduler = commandScheduler;
+            if (scheduler != null && !(cmd instanceof BulkCommand)) {
+                scheduler.controlStarted(clientContext.getReceivedNanos());
+            }
+            LoopWatchdog.LoopState loop = loopWatchdog != null ? loopWatchdog.current(clientContext.getExecutor()) : null;
+            if (loop != null) {
+                loop.enter(cmd, clientContext);
+            }
+            IRCEvents.CommandEvent event = new IRCEvents.CommandEvent();
+            event.begin();
+            try {
+                return cmd.run(clientContext, this, command);
+            } finally {
+                if (loop != null) {
+                    loop.exit();
+                }
+                event.end();
+                if (event.shouldCommit()) {
+                    event.command = cmd.getClass().getSimpleName();
+                    event.commit();
+                }
+            }
         } else if (!command.trim().isEmpty()) {
             throw new UnknownCommandException(command);
         }
+        return null;
     }
     
     public static void main(String[] args) throws Exception {
@@ -324,6 +891,42 @@ public class IRCServer implements ServerContext {
         } else {
             port = 8080;
         }
-        new IRCServer(port).run();
+        IRCServer server = new IRCServer(port);
+        server.setVirtualThreadCommands(Boolean.getBoolean("irc.virtualThreads"));
+        server.setCompactConnections(Boolean.getBoolean("irc.compactConnections"));
+        long stallMillis = Long.getLong("irc.watchdog.stallMillis", LoopWatchdog.DEFAULT_STALL_MILLIS);
+        if (stallMillis > 0) {
+            server.setLoopWatchdog(new LoopWatchdog(stallMillis));
+        }
+        if (Boolean.getBoolean("irc.scheduling")) {
+            server.setCommandScheduler(new CommandScheduler(TimeUnit.MICROSECONDS.toNanos(
+                    Long.getLong("irc.scheduling.sliceMicros", TimeUnit.NANOSECONDS.toMicros(CommandScheduler.DEFAULT_SLICE_NANOS)))));
+        }
+        server.setPresenceWindow(Long.getLong("irc.presence.windowMillis", ServerContext.PRESENCE_WINDOW_MILLIS));
+        server.setAdmissionControl(new AdmissionControl(
+                Integer.getInteger("irc.admission.maxConnections", 0),
+                Integer.getInteger("irc.admission.maxPerAddress", AdmissionControl.DEFAULT_MAX_PER_ADDRESS),
+                Integer.getInteger("irc.admission.acceptsPerSecond", AdmissionControl.DEFAULT_ACCEPTS_PER_SECOND)));
+        String filterFile = System.getProperty("irc.filter.file");
+        if (filterFile != null) {
+            ContentFilter filter = new ContentFilter(java.nio.file.Paths.get(filterFile));
+            filter.watch(Long.getLong("irc.filter.reloadSeconds", 5), TimeUnit.SECONDS);
+            server.setMessageFilter(filter);
+        }
+        if (Boolean.getBoolean("irc.history.offHeap")) {
+            server.setMessageSlab(new MessageSlab(Integer.getInteger("irc.history.slabChunkSize", MessageSlab.DEFAULT_CHUNK_SIZE),
+                    Integer.getInteger("irc.history.slabStripes", MessageSlab.defaultStripes())));
+        }
+        server.setHistoryBudget(new HistoryBudget(Long.getLong("irc.history.budgetBytes", HistoryBudget.DEFAULT_MAX_BYTES)));
+        Integer tlsPort = Integer.getInteger("irc.tls.port");
+        if (tlsPort != null) {
+            server.enableTls(tlsPort, new TlsChannelInitializer(server,
+                    new File(System.getProperty("irc.tls.cert")),
+                    new File(System.getProperty("irc.tls.key")),
+                    Long.getLong("irc.tls.sessionCacheSize", 0),
+                    Long.getLong("irc.tls.sessionTimeout", 0),
+                    Integer.getInteger("irc.tls.loopThreads", 0)));
+        }
+        server.run();
     }
 }
\ No newline at end of file
@@ -1,11 +1,16 @@
 package com.jogaco.irc;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.buffer.Unpooled;
 
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.ByteProcessor;
+import io.netty.util.concurrent.EventExecutor;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -13,11 +18,25 @@ import java.util.logging.Logger;
  * Handles a server-side channel. One instance per client connection
  */
 public class IRCServerHandler extends ChannelInboundHandlerAdapter implements ClientContext {
+    // Longest command accepted; longer lines are dropped up to their terminator
+    static final int MAX_LINE_LENGTH = 8192;
+    // Shared by idle connections; each queued command chains a new stage from it
+    private static final CompletableFuture<Object> IDLE = CompletableFuture.completedFuture(null);
     final private ServerContext serverContext;
     private User user;
-    private String output;
     private IRCServer.Chat channel;
+    private boolean sequenced;
     private Channel netChannel;
+    // Tail of the commands queued on this connection; only touched from its event loop
+    private CompletableFuture<Object> pending = IDLE;
+    private int inFlight;
+    // Responses of the current read batch, flushed once in channelReadComplete
+    private ByteBuf batch;
+    // Unterminated tail of the previous read, prepended to the next one
+    private ByteBuf partial;
+    private boolean discarding;
+    private IRCEvents.OutboundStallEvent stallEvent;
+    private volatile long receivedNanos;
     
     public IRCServerHandler(ServerContext context) {
         serverContext = context;
@@ -28,35 +47,150 @@ public class IRCServerHandler extends ChannelInboundHandlerAdapter implements Cl
         netChannel = ctx.channel();
     }
     
+    /**
+     * Leaves the channel once every queued command has run, so that a /join
+     * still in flight on another thread cannot leave a dead member behind
+     */
     @Override
     public void channelInactive(ChannelHandlerContext ctx) {
+        if (inFlight == 0) {
+            leaveChannel();
+        } else {
+            pending = pending.handleAsync((ignored, cause) -> {
+                leaveChannel();
+                return null;
+            }, ctx.executor());
+        }
+        if (batch != null) {
+            batch.release();
+            batch = null;
+        }
+        if (partial != null) {
+            partial.release();
+            partial = null;
+        }
+    }
+
+    private void leaveChannel() {
         if (channel != null) {
             channel.leave(this);
         }
     }
 
+    /**
+     * A read may carry several commands, one per line. Every complete line is
+     * dispatched; an unterminated tail waits for the rest of its line in the
+     * next read. Responses of the whole read batch are gathered in one buffer
+     * and flushed in channelReadComplete.
+     */
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        receivedNanos = System.nanoTime();
         ByteBuf in = (ByteBuf) msg;
-        String command = in.toString(io.netty.util.CharsetUtil.UTF_8);
-        String response = null;
+        if (partial != null) {
+            partial.writeBytes(in);
+            in.release();
+            in = partial;
+            partial = null;
+        }
         try {
-            serverContext.handleCommand(this, command);
-            if (this.output != null) {
-                response = output;
+            int end;
+            while ((end = in.forEachByte(ByteProcessor.FIND_LF)) >= 0) {
+                int start = in.readerIndex();
+                in.readerIndex(end + 1);
+                if (discarding) {
+                    discarding = false;
+                } else {
+                    dispatch(ctx, in.toString(start, end - start, io.netty.util.CharsetUtil.UTF_8));
+                }
             }
-        } catch (LoginRequiredException | ErrorInCommandException | UserWrongPasswordException | ChannelMaxUsersException | UnknownCommandException ex ) {
+            if (in.readableBytes() > MAX_LINE_LENGTH) {
+                discarding = true;
+            } else if (in.isReadable() && !discarding) {
+                partial = ctx.alloc().buffer(in.readableBytes());
+                partial.writeBytes(in);
+            }
+        } finally {
+            in.release();
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        if (batch != null) {
+            ctx.writeAndFlush(batch);
+            batch = null;
+        }
+        ctx.fireChannelReadComplete();
+    }
+
+    private void dispatch(ChannelHandlerContext ctx, String command) {
+        Executor executor = serverContext.getCommandExecutor(command);
+        if (executor == null && inFlight == 0) {
+            String response = execute(command);
+            if (response != null) {
+                if (batch == null) {
+                    batch = ctx.alloc().buffer(response.length());
+                }
+                ByteBufUtil.writeUtf8(batch, response);
+            }
+        } else {
+            schedule(ctx, command, executor);
+        }
+    }
+
+    /**
+     * Queues the command behind any command still in flight so that responses
+     * keep the order of the requests. The response is always written from the
+     * connection's event loop.
+     */
+    private void schedule(final ChannelHandlerContext ctx, final String command, Executor executor) {
+        final EventExecutor loop = ctx.executor();
+        ++inFlight;
+        pending = pending.thenApplyAsync(ignored -> execute(command), executor != null ? executor : loop)
+                .handleAsync((response, cause) -> {
+                    if (--inFlight == 0) {
+                        pending = IDLE;
+                    }
+                    if (!ctx.channel().isActive()) {
+                        // the client went away while the command ran
+                        leaveChannel();
+                    } else if (cause != null) {
+                        ctx.fireExceptionCaught(cause);
+                    } else if (response != null) {
+                        ctx.writeAndFlush(ByteBufUtil.writeUtf8(ctx.alloc(), response));
+                    }
+                    return null;
+                }, loop);
+    }
+
+    private String execute(String command) {
+        String response = null;
+        try {
+            response = serverContext.handleCommand(this, command);
+        } catch (LoginRequiredException | ErrorInCommandException | UserWrongPasswordException | ChannelMaxUsersException | UnknownCommandException | MessageBlockedException ex ) {
             response = ex.getMessage();
         } catch (IRCException ex) {
             Logger.getLogger(IRCServerHandler.class.getName()).log(Level.SEVERE, null, ex);
         }
-        if (response != null) {
-            StringBuilder builder = new StringBuilder(response.length() + 1);
-            builder.append(response);
-            ctx.write(Unpooled.copiedBuffer(builder.toString().getBytes()));
-            ctx.flush();
+        return response;
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        if (!ctx.channel().isWritable()) {
+            stallEvent = new IRCEvents.OutboundStallEvent();
+            stallEvent.begin();
+        } else if (stallEvent != null) {
+            stallEvent.end();
+            if (stallEvent.shouldCommit()) {
+                stallEvent.remoteAddress = String.valueOf(ctx.channel().remoteAddress());
+                stallEvent.user = user != null ? user.getUsername() : null;
+                stallEvent.commit();
+            }
+            stallEvent = null;
         }
-        ((ByteBuf) msg).release();
+        ctx.fireChannelWritabilityChanged();
     }
 
     @Override
@@ -78,7 +212,7 @@ public class IRCServerHandler extends ChannelInboundHandlerAdapter implements Cl
 
     @Override
     public void setCurrentChannel(IRCServer.Chat channel) {
-        if (this.channel != null) {
+        if (this.channel != null && this.channel != channel) {
             this.channel.leave(this);
         }
 
@@ -90,15 +224,56 @@ public class IRCServerHandler extends ChannelInboundHandlerAdapter implements Cl
         return channel;
     }
 
-    @Override
-    public void setOutput(String output) {
-        this.output = output;
-    }
-    
     @Override
     public void notify(UserMessage msg) {
         ByteBuf buf = Unpooled.buffer();
+        if (sequenced) {
+            writeDecimal(buf, msg.getSequence());
+            buf.writeByte(UserMessage.SEQUENCE_SEPARATOR);
+        }
         buf.writeBytes(msg.getFormattedMessage().getBytes());
         netChannel.writeAndFlush(buf);
     }
+
+    /**
+     * Writes a non-negative number as ASCII digits, without building a String
+     */
+    static void writeDecimal(ByteBuf buf, long value) {
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) {
+            ++digits;
+        }
+        int index = buf.writerIndex();
+        buf.ensureWritable(digits);
+        for (int i = digits - 1; i >= 0; --i) {
+            buf.setByte(index + i, (int) ('0' + value % 10));
+            value /= 10;
+        }
+        buf.writerIndex(index + digits);
+    }
+
+    @Override
+    public boolean isSequenced() {
+        return sequenced;
+    }
+
+    @Override
+    public void setSequenced(boolean sequenced) {
+        this.sequenced = sequenced;
+    }
+
+    @Override
+    public long getReceivedNanos() {
+        return receivedNanos;
+    }
+
+    @Override
+    public EventExecutor getExecutor() {
+        return netChannel.eventLoop();
+    }
+
+    @Override
+    public void notify(String line) {
+        netChannel.writeAndFlush(ByteBufUtil.writeUtf8(netChannel.alloc(), line));
+    }
 }
\ No newline at end of file
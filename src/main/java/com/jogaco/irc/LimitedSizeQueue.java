@@ -13,9 +13,29 @@ public class LimitedSizeQueue<K> extends ArrayList<K> {
 
     public boolean add(K k){
         boolean r = super.add(k);
-        if (size() > maxSize){
-            removeRange(0, size() - maxSize - 1);
+        while (size() > maxSize){
+            evicted(remove(0));
         }
         return r;
     }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Changes the capacity, dropping the oldest elements if needed
+     */
+    public void setMaxSize(int size) {
+        maxSize = size;
+        while (size() > maxSize){
+            evicted(remove(0));
+        }
+    }
+
+    /**
+     * Called for each element dropped to keep the queue within its size
+     */
+    protected void evicted(K k) {
+    }
 }
\ No newline at end of file
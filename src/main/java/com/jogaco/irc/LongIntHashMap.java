@@ -0,0 +1,118 @@
+package com.jogaco.irc;
+
+/**
+ * Open addressing map from long keys to positive int counts, without boxing.
+ * Keys whose count drops to zero are removed. Not thread safe.
+ */
+public class LongIntHashMap {
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private long[] keys;
+    private int[] values;
+    private int size;
+
+    public LongIntHashMap(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(expected * 2 - 1, 4)) << 1;
+        keys = new long[capacity];
+        values = new int[capacity];
+        java.util.Arrays.fill(keys, EMPTY);
+    }
+
+    public int get(long key) {
+        int slot = find(key);
+        return keys[slot] == key ? values[slot] : 0;
+    }
+
+    /**
+     * @return the new count
+     */
+    public int increment(long key) {
+        int slot = find(key);
+        if (keys[slot] != key) {
+            keys[slot] = key;
+            values[slot] = 0;
+            if (++size * 2 > keys.length) {
+                rehash(keys.length * 2);
+                slot = find(key);
+            }
+        }
+        return ++values[slot];
+    }
+
+    /**
+     * @return the new count, removing the key at zero
+     */
+    public int decrement(long key) {
+        int slot = find(key);
+        if (keys[slot] != key) {
+            return 0;
+        }
+        int value = --values[slot];
+        if (value <= 0) {
+            remove(slot);
+            return 0;
+        }
+        return value;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private int find(long key) {
+        if (key == EMPTY) {
+            throw new IllegalArgumentException("Reserved key");
+        }
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Backward shift deletion, keeping probe sequences intact without tombstones
+     */
+    private void remove(int slot) {
+        int mask = keys.length - 1;
+        int hole = slot;
+        int next = (slot + 1) & mask;
+        while (keys[next] != EMPTY) {
+            int ideal = hash(keys[next]) & mask;
+            if (((next - ideal) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keys[hole] = EMPTY;
+        values[hole] = 0;
+        --size;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[capacity];
+        values = new int[capacity];
+        java.util.Arrays.fill(keys, EMPTY);
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; ++i) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = hash(oldKeys[i]) & mask;
+                while (keys[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,242 @@
+package com.jogaco.irc;
+
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Detects blocked event loops. A watchdog thread sends a heartbeat task to each
+ * loop and records how late it runs. When a heartbeat is still pending after
+ * the stall threshold, the loop thread's stack is sampled and logged, together
+ * with the command (and its channel) the loop was running.
+ */
+public class LoopWatchdog implements LoopWatchdogMBean {
+    public static final long DEFAULT_STALL_MILLIS = 200;
+    // Bucket i counts lags below FIRST_BUCKET_MICROS << i, the last one is open ended
+    static final int FIRST_BUCKET_MICROS = 64;
+    static final int BUCKETS = 16;
+
+    private static final Logger LOGGER = Logger.getLogger(LoopWatchdog.class.getName());
+
+    private final long stallNanos;
+    private final ConcurrentMap<EventExecutor, LoopState> loops = new ConcurrentHashMap<>();
+    private final AtomicLong stalls = new AtomicLong();
+    private final AtomicLong maxLagNanos = new AtomicLong();
+    private volatile String lastStall;
+    private ScheduledExecutorService watchdog;
+
+    public LoopWatchdog(long stallMillis) {
+        this.stallNanos = TimeUnit.MILLISECONDS.toNanos(stallMillis);
+    }
+
+    class LoopState implements Runnable {
+        final EventExecutor loop;
+        final AtomicLongArray lags = new AtomicLongArray(BUCKETS);
+        volatile Thread thread;
+        // When the pending heartbeat was sent, 0 when none is pending
+        volatile long sentNanos;
+        // Watchdog thread only
+        boolean reported;
+        // What the loop is running, for stall reports
+        volatile IRCServer.Command command;
+        volatile ClientContext client;
+
+        LoopState(EventExecutor loop) {
+            this.loop = loop;
+        }
+
+        /**
+         * The heartbeat, run on the loop
+         */
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            long lag = System.nanoTime() - sentNanos;
+            lags.incrementAndGet(bucket(TimeUnit.NANOSECONDS.toMicros(lag)));
+            long max = maxLagNanos.get();
+            while (lag > max && !maxLagNanos.compareAndSet(max, lag)) {
+                max = maxLagNanos.get();
+            }
+            sentNanos = 0;
+        }
+
+        void enter(IRCServer.Command command, ClientContext client) {
+            this.command = command;
+            this.client = client;
+        }
+
+        void exit() {
+            command = null;
+            client = null;
+        }
+    }
+
+    static int bucket(long lagMicros) {
+        long scaled = lagMicros / FIRST_BUCKET_MICROS;
+        int bucket = scaled == 0 ? 0 : 64 - Long.numberOfLeadingZeros(scaled);
+        return Math.min(bucket, BUCKETS - 1);
+    }
+
+    /**
+     * Starts watching every loop of the group; may be called for several groups
+     */
+    public synchronized void start(EventExecutorGroup group) {
+        for (EventExecutor loop : group) {
+            final LoopState state = new LoopState(loop);
+            loops.put(loop, state);
+            // learn the loop thread before the first heartbeat, so an early stall can be sampled
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    state.thread = Thread.currentThread();
+                }
+            });
+        }
+        if (watchdog != null) {
+            return;
+        }
+        watchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "loop-watchdog");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        long period = Math.max(1, TimeUnit.NANOSECONDS.toMillis(stallNanos) / 4);
+        watchdog.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                check();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (watchdog != null) {
+            watchdog.shutdownNow();
+            watchdog = null;
+        }
+    }
+
+    /**
+     * State of the given loop if the calling thread is that loop, null otherwise
+     */
+    LoopState current(EventExecutor loop) {
+        if (loop == null || !loop.inEventLoop()) {
+            return null;
+        }
+        return loops.get(loop);
+    }
+
+    void check() {
+        for (LoopState state : loops.values()) {
+            long now = System.nanoTime();
+            long sent = state.sentNanos;
+            if (sent == 0) {
+                state.reported = false;
+                state.sentNanos = now;
+                try {
+                    state.loop.execute(state);
+                } catch (RejectedExecutionException ex) {
+                    // shutting down
+                }
+            } else if (!state.reported && now - sent >= stallNanos) {
+                state.reported = true;
+                stalled(state, now - sent);
+            }
+        }
+    }
+
+    private void stalled(LoopState state, long blockedNanos) {
+        stalls.incrementAndGet();
+        Thread thread = state.thread;
+        IRCServer.Command command = state.command;
+        ClientContext client = state.client;
+        IRCServer.Chat chat = client != null ? client.getCurrentChannel() : null;
+
+        StringBuilder stack = new StringBuilder();
+        if (thread != null) {
+            for (StackTraceElement frame : thread.getStackTrace()) {
+                stack.append("\tat ").append(frame).append('\n');
+            }
+        }
+        String loopName = thread != null ? thread.getName() : String.valueOf(state.loop);
+        long blockedMillis = TimeUnit.NANOSECONDS.toMillis(blockedNanos);
+        StringBuilder report = new StringBuilder();
+        report.append("Event loop ").append(loopName).append(" blocked for ").append(blockedMillis).append(" ms");
+        if (command != null) {
+            report.append(" running ").append(command.getClass().getSimpleName());
+            if (chat != null) {
+                report.append(" in channel ").append(chat.getName());
+            }
+        }
+        report.append('\n').append(stack);
+        lastStall = report.toString();
+        LOGGER.log(Level.WARNING, lastStall);
+
+        IRCEvents.LoopStallEvent event = new IRCEvents.LoopStallEvent();
+        if (event.shouldCommit()) {
+            event.loop = loopName;
+            event.blockedMillis = blockedMillis;
+            event.command = command != null ? command.getClass().getSimpleName() : null;
+            event.channel = chat != null ? chat.getName() : null;
+            event.stack = stack.toString();
+            event.commit();
+        }
+    }
+
+    @Override
+    public long getStallMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(stallNanos);
+    }
+
+    @Override
+    public int getLoops() {
+        return loops.size();
+    }
+
+    @Override
+    public long getStalls() {
+        return stalls.get();
+    }
+
+    @Override
+    public long getMaxLagMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(maxLagNanos.get());
+    }
+
+    @Override
+    public String[] getLagHistograms() {
+        List<String> histograms = new ArrayList<>(loops.size());
+        for (LoopState state : loops.values()) {
+            Thread thread = state.thread;
+            StringBuilder line = new StringBuilder(thread != null ? thread.getName() : String.valueOf(state.loop));
+            line.append(':');
+            for (int i = 0; i < BUCKETS; ++i) {
+                line.append(' ').append(i < BUCKETS - 1 ? "<" : ">=")
+                        .append((long) FIRST_BUCKET_MICROS << Math.min(i, BUCKETS - 2)).append("us=")
+                        .append(state.lags.get(i));
+            }
+            histograms.add(line.toString());
+        }
+        return histograms.toArray(new String[histograms.size()]);
+    }
+
+    @Override
+    public String getLastStall() {
+        return lastStall;
+    }
+}
@@ -0,0 +1,25 @@
+package com.jogaco.irc;
+
+public interface LoopWatchdogMBean {
+
+    long getStallMillis();
+
+    int getLoops();
+
+    /**
+     * Times a loop was found blocked past the stall threshold
+     */
+    long getStalls();
+
+    long getMaxLagMicros();
+
+    /**
+     * Heartbeat lag per loop, one line each, counts per power of two bucket
+     */
+    String[] getLagHistograms();
+
+    /**
+     * Report of the last stall, with the sampled stack
+     */
+    String getLastStall();
+}
@@ -0,0 +1,9 @@
+package com.jogaco.irc;
+
+public class MessageBlockedException extends IRCException {
+    static final String MESSAGE_BLOCKED = "Error: message blocked\n";
+
+    public MessageBlockedException() {
+        super(MESSAGE_BLOCKED);
+    }
+}
@@ -0,0 +1,13 @@
+package com.jogaco.irc;
+
+/**
+ * Stage run on channel messages before they reach Chat.sendMessage
+ */
+public interface MessageFilter {
+
+    /**
+     * @return the text to deliver, possibly rewritten
+     * @throws MessageBlockedException if the message must not be delivered
+     */
+    String filter(String channel, User user, String message) throws IRCException;
+}
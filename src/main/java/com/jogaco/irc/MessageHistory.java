@@ -0,0 +1,57 @@
+package com.jogaco.irc;
+
+/**
+ * Bounded history of one channel, oldest message first. Messages carry
+ * consecutive sequence numbers. Not thread safe: guarded by the Chat.
+ */
+public interface MessageHistory {
+
+    interface EvictionListener {
+
+        /**
+         * Called for each message dropped to stay within capacity
+         *
+         * @param bytes what the message was charged when added
+         */
+        void evicted(long bytes);
+    }
+
+    /**
+     * Appends a message, evicting the oldest one if full
+     *
+     * @return bytes taken by the message
+     */
+    long add(UserMessage msg);
+
+    int size();
+
+    UserMessage get(int index);
+
+    /**
+     * Sequence number of the oldest retained message
+     */
+    long firstSequence();
+
+    /**
+     * Appends the formatted messages, oldest first
+     */
+    void replay(StringBuilder builder);
+
+    /**
+     * Appends the messages from sequence on, oldest first, each prefixed by its
+     * sequence number
+     */
+    void replaySince(long sequence, StringBuilder builder);
+
+    int getMaxSize();
+
+    /**
+     * Changes the capacity, evicting the oldest messages if needed
+     */
+    void setMaxSize(int size);
+
+    /**
+     * Drops every message without notifying the listener, releasing storage
+     */
+    void clear();
+}
@@ -0,0 +1,243 @@
+package com.jogaco.irc;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Arena of direct memory shared by the off-heap histories. The arena is split
+ * in stripes, each with its own lock, chunks and free lists; a history keeps to
+ * one stripe (see {@link #nextStripe()}), so channels on different stripes never
+ * contend. Chunks are carved into blocks of one power-of-two size class; freed
+ * blocks go to a per-class free list.
+ *
+ * A block is addressed by a long handle (stripe, size class, chunk, offset), so
+ * callers keep no heap object per stored record, sizeOf needs no lookup and
+ * reads take no lock: a block is only read by the history owning it.
+ *
+ * Records are [int length][short user length][formatted message bytes].
+ */
+public class MessageSlab {
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+    static final int MIN_BLOCK_SHIFT = 6;
+    static final int MAX_CHUNK_SIZE = 1 << 30;
+    static final int HEADER = 6;
+    static final Charset CHARSET = io.netty.util.CharsetUtil.UTF_8;
+
+    // Handle: [stripe 8][size class 5][chunk 19][offset 32]
+    static final int CHUNK_BITS = 19;
+    static final int CLASS_BITS = 5;
+    static final int STRIPE_BITS = 8;
+    static final int MAX_STRIPES = 1 << STRIPE_BITS;
+    private static final int CHUNK_SHIFT = 32;
+    private static final int CLASS_SHIFT = CHUNK_SHIFT + CHUNK_BITS;
+    private static final int STRIPE_SHIFT = CLASS_SHIFT + CLASS_BITS;
+
+    private final int chunkSize;
+    private final Stripe[] stripes;
+    private final AtomicInteger nextStripe = new AtomicInteger();
+
+    /**
+     * Chunks and free lists of one stripe, guarded by the stripe itself. The
+     * chunk array is replaced, never modified in place, so readers need no lock.
+     */
+    static final class Stripe {
+        volatile ByteBuf[] chunks = new ByteBuf[0];
+        final long[][] freeLists;
+        final int[] freeCounts;
+        // Chunk being carved for each size class, and the next unused offset in it
+        final int[] carveChunk;
+        final int[] carveOffset;
+        long usedBytes;
+
+        Stripe(int classes) {
+            freeLists = new long[classes][];
+            freeCounts = new int[classes];
+            carveChunk = new int[classes];
+            carveOffset = new int[classes];
+            for (int i = 0; i < classes; ++i) {
+                freeLists[i] = new long[16];
+                carveChunk[i] = -1;
+            }
+        }
+    }
+
+    public MessageSlab() {
+        this(DEFAULT_CHUNK_SIZE);
+    }
+
+    public MessageSlab(int chunkSize) {
+        this(chunkSize, defaultStripes());
+    }
+
+    /**
+     * @param chunkSize power of two, also the largest record stored
+     * @param stripes number of independently locked stripes, at most {@link #MAX_STRIPES}
+     */
+    public MessageSlab(int chunkSize, int stripes) {
+        if (Integer.bitCount(chunkSize) != 1 || chunkSize < (1 << MIN_BLOCK_SHIFT) || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("chunkSize must be a power of two in ["
+                    + (1 << MIN_BLOCK_SHIFT) + ", " + MAX_CHUNK_SIZE + "]");
+        }
+        if (stripes < 1 || stripes > MAX_STRIPES) {
+            throw new IllegalArgumentException("stripes must be in [1, " + MAX_STRIPES + "]");
+        }
+        this.chunkSize = chunkSize;
+        int classes = Integer.numberOfTrailingZeros(chunkSize) - MIN_BLOCK_SHIFT + 1;
+        this.stripes = new Stripe[stripes];
+        for (int i = 0; i < stripes; ++i) {
+            this.stripes[i] = new Stripe(classes);
+        }
+    }
+
+    static int defaultStripes() {
+        return Math.min(MAX_STRIPES, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) * 2);
+    }
+
+    /**
+     * Stripe for a new history, round robin
+     */
+    int nextStripe() {
+        return (nextStripe.getAndIncrement() & Integer.MAX_VALUE) % stripes.length;
+    }
+
+    /**
+     * Stores a formatted message, truncated to the largest block if needed
+     *
+     * @return handle of the record
+     */
+    long store(int stripe, String username, String formattedMessage) {
+        byte[] bytes = formattedMessage.getBytes(CHARSET);
+        int length = Math.min(bytes.length, chunkSize - HEADER);
+        Stripe s = stripes[stripe];
+        long handle;
+        synchronized (s) {
+            handle = allocate(s, stripe, sizeClass(HEADER + length));
+        }
+        // the block is ours alone: fill it outside the lock
+        ByteBuf chunk = s.chunks[chunk(handle)];
+        int offset = offset(handle);
+        chunk.setInt(offset, length);
+        chunk.setShort(offset + 4, username.length());
+        chunk.setBytes(offset + HEADER, bytes, 0, length);
+        return handle;
+    }
+
+    void free(long handle) {
+        Stripe s = stripes[stripe(handle)];
+        int cls = sizeClass(handle);
+        synchronized (s) {
+            if (s.freeCounts[cls] == s.freeLists[cls].length) {
+                s.freeLists[cls] = Arrays.copyOf(s.freeLists[cls], s.freeCounts[cls] * 2);
+            }
+            s.freeLists[cls][s.freeCounts[cls]++] = handle;
+            s.usedBytes -= blockSize(cls);
+        }
+    }
+
+    /**
+     * Size of the block holding the record
+     */
+    static long sizeOf(long handle) {
+        return blockSize(sizeClass(handle));
+    }
+
+    String formattedMessage(long handle) {
+        ByteBuf chunk = chunkOf(handle);
+        int offset = offset(handle);
+        return chunk.toString(offset + HEADER, chunk.getInt(offset), CHARSET);
+    }
+
+    int usernameLength(long handle) {
+        return chunkOf(handle).getUnsignedShort(offset(handle) + 4);
+    }
+
+    /**
+     * Appends the formatted message to builder, decoding straight from the slab
+     */
+    void appendTo(long handle, StringBuilder builder) {
+        ByteBuf chunk = chunkOf(handle);
+        int offset = offset(handle);
+        builder.append(chunk.getCharSequence(offset + HEADER, chunk.getInt(offset), CHARSET));
+    }
+
+    public long getUsedBytes() {
+        long used = 0;
+        for (Stripe s : stripes) {
+            synchronized (s) {
+                used += s.usedBytes;
+            }
+        }
+        return used;
+    }
+
+    public long getReservedBytes() {
+        long chunks = 0;
+        for (Stripe s : stripes) {
+            chunks += s.chunks.length;
+        }
+        return chunks * chunkSize;
+    }
+
+    int getStripes() {
+        return stripes.length;
+    }
+
+    private ByteBuf chunkOf(long handle) {
+        return stripes[stripe(handle)].chunks[chunk(handle)];
+    }
+
+    /**
+     * Called holding the stripe lock
+     */
+    private long allocate(Stripe s, int stripe, int cls) {
+        int blockSize = blockSize(cls);
+        s.usedBytes += blockSize;
+        if (s.freeCounts[cls] > 0) {
+            return s.freeLists[cls][--s.freeCounts[cls]];
+        }
+        if (s.carveChunk[cls] < 0 || s.carveOffset[cls] + blockSize > chunkSize) {
+            ByteBuf[] chunks = s.chunks;
+            if (chunks.length == 1 << CHUNK_BITS) {
+                s.usedBytes -= blockSize;
+                throw new IllegalStateException("Slab stripe full: " + chunks.length + " chunks");
+            }
+            ByteBuf[] grown = Arrays.copyOf(chunks, chunks.length + 1);
+            grown[chunks.length] = Unpooled.directBuffer(chunkSize, chunkSize);
+            s.chunks = grown;
+            s.carveChunk[cls] = chunks.length;
+            s.carveOffset[cls] = 0;
+        }
+        long handle = ((long) stripe << STRIPE_SHIFT) | ((long) cls << CLASS_SHIFT)
+                | ((long) s.carveChunk[cls] << CHUNK_SHIFT) | s.carveOffset[cls];
+        s.carveOffset[cls] += blockSize;
+        return handle;
+    }
+
+    static int sizeClass(int size) {
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1 << MIN_BLOCK_SHIFT) - 1);
+        return shift - MIN_BLOCK_SHIFT;
+    }
+
+    static int blockSize(int cls) {
+        return 1 << (cls + MIN_BLOCK_SHIFT);
+    }
+
+    private static int stripe(long handle) {
+        return (int) (handle >>> STRIPE_SHIFT);
+    }
+
+    private static int sizeClass(long handle) {
+        return (int) (handle >>> CLASS_SHIFT) & ((1 << CLASS_BITS) - 1);
+    }
+
+    private static int chunk(long handle) {
+        return (int) (handle >>> CHUNK_SHIFT) & ((1 << CHUNK_BITS) - 1);
+    }
+
+    private static int offset(long handle) {
+        return (int) handle;
+    }
+}
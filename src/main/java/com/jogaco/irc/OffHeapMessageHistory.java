@@ -0,0 +1,138 @@
+package com.jogaco.irc;
+
+
+/**
+ * History whose messages live in a {@link MessageSlab}; the heap only holds a
+ * ring of record handles, so heap use does not grow with message volume.
+ * Messages are decoded back into UserMessage objects only when asked for.
+ */
+public class OffHeapMessageHistory implements MessageHistory {
+    private static final int SEPARATOR_LENGTH = System.lineSeparator().length();
+
+    private final MessageSlab slab;
+    private final EvictionListener listener;
+    private final int stripe;
+    private long[] handles;
+    private int head;
+    private int size;
+    private int maxSize;
+    private long firstSequence;
+
+    public OffHeapMessageHistory(MessageSlab slab, int size, EvictionListener listener) {
+        this.slab = slab;
+        this.listener = listener;
+        this.stripe = slab.nextStripe();
+        this.maxSize = size;
+        handles = new long[0];
+    }
+
+    @Override
+    public long add(UserMessage msg) {
+        long handle = slab.store(stripe, msg.getUsername(), msg.getFormattedMessage());
+        if (size == maxSize) {
+            evictOldest();
+        }
+        if (size == 0) {
+            firstSequence = msg.getSequence();
+        }
+        if (size == handles.length) {
+            grow(Math.min(Math.max(handles.length * 2, 4), maxSize));
+        }
+        handles[(head + size) % handles.length] = handle;
+        ++size;
+        return MessageSlab.sizeOf(handle);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public UserMessage get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        return decode(handles[(head + index) % handles.length], firstSequence + index);
+    }
+
+    @Override
+    public long firstSequence() {
+        return firstSequence;
+    }
+
+    @Override
+    public void replay(StringBuilder builder) {
+        for (int i = 0; i < size; ++i) {
+            slab.appendTo(handles[(head + i) % handles.length], builder);
+        }
+    }
+
+    @Override
+    public void replaySince(long sequence, StringBuilder builder) {
+        for (int i = (int) Math.max(sequence - firstSequence, 0); i < size; ++i) {
+            builder.append(firstSequence + i).append(UserMessage.SEQUENCE_SEPARATOR);
+            slab.appendTo(handles[(head + i) % handles.length], builder);
+        }
+    }
+
+    @Override
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public void setMaxSize(int size) {
+        maxSize = size;
+        trim();
+        if (handles.length > maxSize) {
+            grow(maxSize);
+        }
+    }
+
+    @Override
+    public void clear() {
+        for (int i = 0; i < size; ++i) {
+            slab.free(handles[(head + i) % handles.length]);
+        }
+        handles = new long[0];
+        head = 0;
+        size = 0;
+    }
+
+    private void trim() {
+        while (size > maxSize) {
+            evictOldest();
+        }
+    }
+
+    private void evictOldest() {
+        long handle = handles[head];
+        long bytes = MessageSlab.sizeOf(handle);
+        slab.free(handle);
+        head = (head + 1) % handles.length;
+        --size;
+        ++firstSequence;
+        listener.evicted(bytes);
+    }
+
+    /**
+     * Reallocates the ring, oldest message first
+     */
+    private void grow(int length) {
+        long[] ring = new long[length];
+        for (int i = 0; i < size; ++i) {
+            ring[i] = handles[(head + i) % handles.length];
+        }
+        handles = ring;
+        head = 0;
+    }
+
+    private UserMessage decode(long handle, long sequence) {
+        String formatted = slab.formattedMessage(handle);
+        int usernameLength = slab.usernameLength(handle);
+        String username = formatted.substring(0, usernameLength);
+        int end = Math.max(usernameLength + 2, formatted.length() - SEPARATOR_LENGTH);
+        return new UserMessage(new User(username, null), formatted.substring(usernameLength + 2, end), sequence);
+    }
+}
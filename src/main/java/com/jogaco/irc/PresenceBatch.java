@@ -0,0 +1,67 @@
+package com.jogaco.irc;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Joins and leaves of one channel accumulated over the presence window. A user
+ * who leaves and comes back (or joins and leaves) within the window cancels
+ * out, so reconnect storms produce no presence traffic.
+ */
+public class PresenceBatch {
+    static final String JOINED = "joined: ";
+    static final String LEFT = "left: ";
+    static final String SEPARATOR = " / ";
+
+    private final Set<String> joined = new LinkedHashSet<>();
+    private final Set<String> left = new LinkedHashSet<>();
+
+    void joined(String username) {
+        if (!left.remove(username)) {
+            joined.add(username);
+        }
+    }
+
+    void left(String username) {
+        if (!joined.remove(username)) {
+            left.add(username);
+        }
+    }
+
+    boolean isEmpty() {
+        return joined.isEmpty() && left.isEmpty();
+    }
+
+    /**
+     * Formats the batch as a single line and clears it
+     */
+    String drain() {
+        StringBuilder builder = new StringBuilder();
+        if (!joined.isEmpty()) {
+            builder.append(JOINED);
+            append(builder, joined);
+        }
+        if (!left.isEmpty()) {
+            if (builder.length() > 0) {
+                builder.append(SEPARATOR);
+            }
+            builder.append(LEFT);
+            append(builder, left);
+        }
+        builder.append(System.lineSeparator());
+        joined.clear();
+        left.clear();
+        return builder.toString();
+    }
+
+    private static void append(StringBuilder builder, Set<String> usernames) {
+        Iterator<String> it = usernames.iterator();
+        while (it.hasNext()) {
+            builder.append(it.next());
+            if (it.hasNext()) {
+                builder.append(", ");
+            }
+        }
+    }
+}
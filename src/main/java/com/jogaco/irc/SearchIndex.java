@@ -0,0 +1,158 @@
+package com.jogaco.irc;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Inverted index of the messages retained by one channel: term -> ascending
+ * sequence numbers. Messages are added as they are appended to the history.
+ * Evicted messages are not looked up again: postings below the history's first
+ * sequence are dropped lazily, from a term when it is added to or searched, and
+ * from every term in a sweep run after as many messages as the index had terms
+ * left by the previous sweep, so upkeep stays constant per message and stale
+ * terms never outnumber live ones by more than MIN_SWEEP_INTERVAL. Not thread safe: guarded by the history lock.
+ */
+public class SearchIndex {
+    static final int MAX_TERM_LENGTH = 64;
+    static final int MIN_SWEEP_INTERVAL = 64;
+
+    private final Map<String, Postings> index = new HashMap<>();
+    // Oldest sequence still in the history
+    private long firstSequence;
+    private int addsSinceSweep;
+    private int sweepInterval = MIN_SWEEP_INTERVAL;
+
+    void add(UserMessage msg) {
+        for (String term : terms(msg.getMessage())) {
+            Postings postings = index.get(term);
+            if (postings == null) {
+                postings = new Postings();
+                index.put(term, postings);
+            } else {
+                postings.removeBefore(firstSequence);
+            }
+            postings.add(msg.getSequence());
+        }
+    }
+
+    /**
+     * Records the oldest sequence the history retains, after each append or resize
+     */
+    void retainFrom(long first) {
+        firstSequence = first;
+        if (++addsSinceSweep >= sweepInterval) {
+            sweep();
+        }
+    }
+
+    /**
+     * Drops the postings of evicted messages, and the terms left without any
+     */
+    void sweep() {
+        addsSinceSweep = 0;
+        Iterator<Postings> it = index.values().iterator();
+        while (it.hasNext()) {
+            Postings postings = it.next();
+            postings.removeBefore(firstSequence);
+            if (postings.isEmpty()) {
+                it.remove();
+            }
+        }
+        sweepInterval = Math.max(index.size(), MIN_SWEEP_INTERVAL);
+    }
+
+    /**
+     * Sequence numbers of the most recent retained messages containing term,
+     * oldest first
+     */
+    long[] search(String term, int limit) {
+        String key = normalize(term);
+        Postings postings = index.get(key);
+        if (postings == null) {
+            return new long[0];
+        }
+        postings.removeBefore(firstSequence);
+        if (postings.isEmpty()) {
+            index.remove(key);
+            return new long[0];
+        }
+        return postings.last(limit);
+    }
+
+    int size() {
+        return index.size();
+    }
+
+    void clear() {
+        index.clear();
+        addsSinceSweep = 0;
+        sweepInterval = MIN_SWEEP_INTERVAL;
+    }
+
+    static Set<String> terms(String text) {
+        Set<String> terms = new LinkedHashSet<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); ++i) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                if (i - start <= MAX_TERM_LENGTH) {
+                    terms.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                }
+                start = -1;
+            }
+        }
+        return terms;
+    }
+
+    static String normalize(String term) {
+        return term.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Growable array of ascending sequence numbers, consumed from the head
+     */
+    static class Postings {
+        private long[] ids = new long[2];
+        private int head;
+        private int tail;
+
+        void add(long id) {
+            if (tail == ids.length) {
+                if (head > 0) {
+                    System.arraycopy(ids, head, ids, 0, tail - head);
+                    tail -= head;
+                    head = 0;
+                }
+                if (tail == ids.length) {
+                    ids = Arrays.copyOf(ids, ids.length * 2);
+                }
+            }
+            ids[tail++] = id;
+        }
+
+        void removeBefore(long first) {
+            while (head < tail && ids[head] < first) {
+                ++head;
+            }
+            if (isEmpty()) {
+                head = tail = 0;
+            }
+        }
+
+        boolean isEmpty() {
+            return head == tail;
+        }
+
+        long[] last(int limit) {
+            int count = Math.min(limit, tail - head);
+            return Arrays.copyOfRange(ids, tail - count, tail);
+        }
+    }
+}
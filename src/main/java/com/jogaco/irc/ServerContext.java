@@ -1,13 +1,26 @@
 package com.jogaco.irc;
 
 import com.jogaco.irc.IRCServer.Chat;
+import java.util.concurrent.Executor;
 
 public interface ServerContext {
     public final int MAX_CLIENTS_PER_CHANNEL = 10;
     public final int MAX_MESSAGES = 20;
+    public final int MAX_SEARCH_RESULTS = 10;
+    public final int MAX_LIST_RESULTS = 20;
+    public final long PRESENCE_WINDOW_MILLIS = 2000;
     
 
-    public void handleCommand(ClientContext clientContext, String command) throws IRCException;
+    /**
+     * @return the response to send back to the client, null for none
+     */
+    public String handleCommand(ClientContext clientContext, String command) throws IRCException;
+
+    /**
+     * Executor the given command must run on, or null to run it on the
+     * connection's I/O thread
+     */
+    public Executor getCommandExecutor(String command);
     
     public void loginOrCreateUser(User user) throws IRCException;
 
@@ -0,0 +1,88 @@
+package com.jogaco.irc;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+import java.io.File;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * Pipeline of the TLS listener: JDK SSLEngine in front of the usual handler.
+ * The listener is served by its own event loops (see {@link #getLoopThreads()}):
+ * the engine's delegated tasks (key exchange, certificate work) run inline on
+ * them, so full handshakes never hold the loops of plaintext connections.
+ */
+public class TlsChannelInitializer extends ChannelInitializer<SocketChannel> {
+    static final String SESSION_TICKETS_PROPERTY = "jdk.tls.server.enableSessionTicketExtension";
+
+    private final ServerContext serverContext;
+    private final SslContext sslContext;
+    private final int loopThreads;
+    private final TlsStats stats = new TlsStats();
+
+    /**
+     * @param sessionCacheSize max sessions cached for resumption, 0 for the JDK default
+     * @param sessionTimeout seconds a cached session or ticket stays valid, 0 for the JDK default
+     * @param loopThreads event loops serving TLS connections, 0 for Netty's default
+     */
+    public TlsChannelInitializer(ServerContext serverContext, File certChain, File key,
+            long sessionCacheSize, long sessionTimeout, int loopThreads) throws SSLException {
+        this.serverContext = serverContext;
+        // Stateless resumption: must be set before the JDK SSLContext is initialized
+        if (System.getProperty(SESSION_TICKETS_PROPERTY) == null) {
+            System.setProperty(SESSION_TICKETS_PROPERTY, "true");
+        }
+        sslContext = SslContextBuilder.forServer(certChain, key)
+                .sslProvider(SslProvider.JDK)
+                .sessionCacheSize(sessionCacheSize)
+                .sessionTimeout(sessionTimeout)
+                .build();
+        this.loopThreads = loopThreads;
+    }
+
+    @Override
+    public void initChannel(SocketChannel ch) throws Exception {
+        SSLEngine engine = sslContext.newEngine(ch.alloc());
+        SslHandler sslHandler = new SslHandler(engine);
+        final long handshakeStart = System.currentTimeMillis();
+        sslHandler.handshakeFuture().addListener(new GenericFutureListener<Future<Channel>>() {
+            @Override
+            public void operationComplete(Future<Channel> future) {
+                if (future.isSuccess()) {
+                    stats.handshakeCompleted(isResumed(engine.getSession(), handshakeStart));
+                } else {
+                    stats.handshakeFailed();
+                }
+            }
+        });
+        ch.pipeline().addLast(sslHandler);
+        ch.pipeline().addLast(new IRCServerHandler(serverContext));
+    }
+
+    /**
+     * A resumed session (cache or ticket) keeps the creation time of the
+     * session it was resumed from
+     */
+    static boolean isResumed(SSLSession session, long handshakeStart) {
+        return session.getCreationTime() < handshakeStart;
+    }
+
+    public TlsStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Size of the event loop group the TLS listener must be served from
+     */
+    public int getLoopThreads() {
+        return loopThreads;
+    }
+}
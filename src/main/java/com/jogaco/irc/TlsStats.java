@@ -0,0 +1,78 @@
+package com.jogaco.irc;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Handshake counters of the TLS listener, exported through JMX
+ */
+public class TlsStats implements TlsStatsMBean {
+    private final AtomicLong handshakes = new AtomicLong();
+    private final AtomicLong resumed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private long currentSecond;
+    private long currentSecondCount;
+    private long lastSecondCount;
+
+    void handshakeCompleted(boolean resumedSession) {
+        handshakeCompleted(resumedSession, now());
+    }
+
+    void handshakeCompleted(boolean resumedSession, long second) {
+        handshakes.incrementAndGet();
+        if (resumedSession) {
+            resumed.incrementAndGet();
+        }
+        synchronized (this) {
+            roll(second);
+            ++currentSecondCount;
+        }
+    }
+
+    void handshakeFailed() {
+        failed.incrementAndGet();
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+    }
+
+    private void roll(long second) {
+        if (second != currentSecond) {
+            lastSecondCount = second == currentSecond + 1 ? currentSecondCount : 0;
+            currentSecondCount = 0;
+            currentSecond = second;
+        }
+    }
+
+    @Override
+    public long getHandshakes() {
+        return handshakes.get();
+    }
+
+    @Override
+    public long getResumedHandshakes() {
+        return resumed.get();
+    }
+
+    @Override
+    public long getFailedHandshakes() {
+        return failed.get();
+    }
+
+    @Override
+    public long getHandshakesPerSecond() {
+        return handshakesPerSecond(now());
+    }
+
+    synchronized long handshakesPerSecond(long second) {
+        roll(second);
+        return lastSecondCount;
+    }
+
+    @Override
+    public double getResumptionHitRate() {
+        long total = handshakes.get();
+        return total == 0 ? 0 : (double) resumed.get() / total;
+    }
+}
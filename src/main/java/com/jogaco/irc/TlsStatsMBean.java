@@ -0,0 +1,20 @@
+package com.jogaco.irc;
+
+public interface TlsStatsMBean {
+
+    long getHandshakes();
+
+    long getResumedHandshakes();
+
+    long getFailedHandshakes();
+
+    /**
+     * Handshakes completed during the last full second
+     */
+    long getHandshakesPerSecond();
+
+    /**
+     * Fraction of completed handshakes that resumed a cached session
+     */
+    double getResumptionHitRate();
+}
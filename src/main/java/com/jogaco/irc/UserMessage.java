@@ -1,14 +1,21 @@
 package com.jogaco.irc;
 
 public class UserMessage {
+    static final char SEQUENCE_SEPARATOR = ' ';
 
     private final User user;
     private final String message;
+    private final long sequence;
     private String formattedMessage;
     
     public UserMessage(User user, String msg) {
+        this(user, msg, 0);
+    }
+
+    public UserMessage(User user, String msg, long sequence) {
         this.user = user;
         this.message = msg;
+        this.sequence = sequence;
     }
 
     public String getUsername() {
@@ -21,6 +28,13 @@ public class UserMessage {
     public String getMessage() {
         return message;
     }
+
+    /**
+     * Position of the message in its channel's history
+     */
+    public long getSequence() {
+        return sequence;
+    }
     
     public String getFormattedMessage() {
         if (formattedMessage == null) {
@@ -0,0 +1,164 @@
+package com.jogaco.irc;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeTrue;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Fails when a command path allocates more bytes per operation than the budget
+ * recorded in allocation-budgets.properties. Everything runs on the test thread
+ * through EmbeddedChannel, so the thread allocation counter sees the whole path.
+ */
+public class AllocationBudgetTest {
+
+    static final int WARMUP = 20000;
+    static final int ITERATIONS = 20000;
+
+    static com.sun.management.ThreadMXBean threadBean;
+    static Properties budgets;
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        threadBean = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        budgets = new Properties();
+        try (InputStream in = AllocationBudgetTest.class.getResourceAsStream("/allocation-budgets.properties")) {
+            budgets.load(in);
+        }
+    }
+
+    interface Operation {
+        void run(int iteration);
+    }
+
+    static long bytesPerOperation(Operation operation) {
+        for (int i = 0; i < WARMUP; ++i) {
+            operation.run(i);
+        }
+        long threadId = Thread.currentThread().getId();
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < ITERATIONS; ++i) {
+            operation.run(i);
+        }
+        return (threadBean.getThreadAllocatedBytes(threadId) - before) / ITERATIONS;
+    }
+
+    static void assertWithinBudget(String path, Operation operation) {
+        long budget = Long.parseLong(budgets.getProperty(path).trim());
+        long allocated = bytesPerOperation(operation);
+        assertThat(path + ": " + allocated + " bytes/op", allocated, lessThanOrEqualTo(budget));
+    }
+
+    static EmbeddedChannel connect(ServerContext serverContext, String name, String channelName) {
+        EmbeddedChannel channel = new EmbeddedChannel(new IRCServerHandler(serverContext));
+        send(channel, "/login " + name + " " + name);
+        if (channelName != null) {
+            send(channel, "/join " + channelName);
+        }
+        channel.releaseOutbound();
+        return channel;
+    }
+
+    static void send(EmbeddedChannel channel, String command) {
+        send(channel, (command + "\n").getBytes());
+    }
+
+    static void send(EmbeddedChannel channel, byte[] line) {
+        channel.writeInbound(Unpooled.wrappedBuffer(line));
+    }
+
+    @Test
+    public void channelMessageFanOut() {
+        ServerContext serverContext = new IRCServer(1);
+        final EmbeddedChannel sender = connect(serverContext, "sender", "channel");
+        final List<EmbeddedChannel> listeners = new ArrayList<>();
+        for (int j = 1; j < ServerContext.MAX_CLIENTS_PER_CHANNEL; ++j) {
+            listeners.add(connect(serverContext, "listener" + j, "channel"));
+        }
+        final byte[] line = "a typical line of chat, not too short and not too long\n".getBytes();
+
+        assertWithinBudget("message.fanout", new Operation() {
+            @Override
+            public void run(int iteration) {
+                send(sender, line);
+                sender.releaseOutbound();
+                for (EmbeddedChannel listener : listeners) {
+                    listener.releaseOutbound();
+                }
+            }
+        });
+    }
+
+    @Test
+    public void users() {
+        ServerContext serverContext = new IRCServer(1);
+        final EmbeddedChannel client = connect(serverContext, "user", "channel");
+        for (int j = 1; j < ServerContext.MAX_CLIENTS_PER_CHANNEL; ++j) {
+            connect(serverContext, "user" + j, "channel");
+        }
+
+        final byte[] users = "/users\n".getBytes();
+
+        assertWithinBudget("users", new Operation() {
+            @Override
+            public void run(int iteration) {
+                send(client, users);
+                client.releaseOutbound();
+            }
+        });
+    }
+
+    @Test
+    public void joinWithHistory() {
+        ServerContext serverContext = new IRCServer(1);
+        EmbeddedChannel sender = connect(serverContext, "sender", "channel");
+        for (int j = 0; j < ServerContext.MAX_MESSAGES; ++j) {
+            send(sender, "history line " + j);
+        }
+        final EmbeddedChannel client = connect(serverContext, "user", null);
+
+        final byte[] joinChannel = "/join channel\n".getBytes();
+        final byte[] joinOther = "/join other\n".getBytes();
+
+        assertWithinBudget("join.history", new Operation() {
+            @Override
+            public void run(int iteration) {
+                send(client, (iteration & 1) == 0 ? joinChannel : joinOther);
+                client.releaseOutbound();
+            }
+        });
+    }
+
+    @Test
+    public void search() {
+        ServerContext serverContext = new IRCServer(1);
+        final EmbeddedChannel client = connect(serverContext, "user", "channel");
+        for (int j = 0; j < ServerContext.MAX_MESSAGES; ++j) {
+            send(client, "history line " + j);
+        }
+        client.releaseOutbound();
+        final byte[] search = "/search line\n".getBytes();
+
+        assertWithinBudget("search", new Operation() {
+            @Override
+            public void run(int iteration) {
+                send(client, search);
+                client.releaseOutbound();
+            }
+        });
+    }
+}
@@ -0,0 +1,132 @@
+package com.jogaco.irc;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ContentFilterTest {
+
+    Path rules;
+    User user = new User("user", "user");
+
+    @Before
+    public void setUp() throws IOException {
+        rules = Files.createTempFile("rules", ".txt");
+        write("# global rules",
+                "drop buy cheap pills",
+                "redact he",
+                "redact hers",
+                "flag his",
+                "[kids]",
+                "redact darn");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.delete(rules);
+    }
+
+    void write(String... lines) throws IOException {
+        Files.write(rules, Arrays.asList(lines), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void overlappingPatternsAreRedacted() throws IOException, IRCException {
+        ContentFilter filter = new ContentFilter(rules);
+
+        assertThat(filter.filter("general", user, "ushers"), is("us****"));
+        assertThat(filter.filter("general", user, "HE said"), is("** said"));
+        assertThat(filter.filter("general", user, "nothing to see"), is("nothing to see"));
+        assertThat(filter.getRedacted(), is(2L));
+    }
+
+    @Test
+    public void flagDeliversUnchanged() throws IOException, IRCException {
+        ContentFilter filter = new ContentFilter(rules);
+
+        assertThat(filter.filter("general", user, "this is it"), is("this is it"));
+        assertThat(filter.getFlagged(), is(1L));
+    }
+
+    @Test
+    public void dropWinsOverRedact() throws IOException, IRCException {
+        ContentFilter filter = new ContentFilter(rules);
+        try {
+            filter.filter("general", user, "hey, buy cheap pills here");
+            fail();
+        } catch (MessageBlockedException ex) {
+            assertThat(filter.getDropped(), is(1L));
+        }
+    }
+
+    @Test
+    public void channelRulesAddToGlobalRules() throws IOException, IRCException {
+        ContentFilter filter = new ContentFilter(rules);
+
+        assertThat(filter.filter("kids", user, "darn, he left"), is("****, ** left"));
+        assertThat(filter.filter("general", user, "darn"), is("darn"));
+    }
+
+    @Test
+    public void channelAutomatonHoldsOnlyChannelRules() throws IOException, IRCException {
+        ContentFilter.Rules parsed = ContentFilter.parse(Files.readAllLines(rules, StandardCharsets.UTF_8));
+
+        // "darn" alone: root plus one state per char
+        assertThat(parsed.forChannel("kids").states(), is(5));
+        assertThat(parsed.forChannel("general") == null, is(true));
+        assertThat(parsed.global.charClass('d'), is(parsed.forChannel("kids").charClass('d')));
+
+        // a channel rule overlapping a global one, both found in one scan
+        write("drop hello", "[kids]", "redact ell");
+        ContentFilter filter = new ContentFilter(rules);
+        assertThat(filter.filter("kids", user, "yell"), is("y***"));
+        try {
+            filter.filter("kids", user, "hello");
+            fail();
+        } catch (MessageBlockedException ex) {
+            assertThat(filter.getDropped(), is(1L));
+        }
+    }
+
+    @Test
+    public void reloadSwapsRules()throws IOException, IRCException {
+        ContentFilter filter = new ContentFilter(rules);
+        write("redact darn");
+        filter.reload();
+
+        assertThat(filter.filter("general", user, "darn he"), is("**** he"));
+    }
+
+    @Test
+    public void blockedMessageIsNotSent() throws IOException {
+        IRCServer serverContext = new IRCServer(1);
+        serverContext.setMessageFilter(new ContentFilter(rules));
+
+        EmbeddedChannel channel = new EmbeddedChannel(new IRCServerHandler(serverContext));
+        channel.writeInbound(Unpooled.wrappedBuffer("/login user user\n/join general\n".getBytes()));
+        channel.releaseOutbound();
+        EmbeddedChannel channel2 = new EmbeddedChannel(new IRCServerHandler(serverContext));
+        channel2.writeInbound(Unpooled.wrappedBuffer("/login user2 user2\n/join general\n".getBytes()));
+        channel2.releaseOutbound();
+
+        channel.writeInbound(Unpooled.wrappedBuffer("buy cheap pills\n".getBytes()));
+        ByteBuf buf = channel.readOutbound();
+        assertThat(buf.toString(io.netty.util.CharsetUtil.US_ASCII), is(MessageBlockedException.MESSAGE_BLOCKED));
+
+        channel.writeInbound(Unpooled.wrappedBuffer("he\n".getBytes()));
+        buf = channel2.readOutbound();
+        assertThat(buf.toString(io.netty.util.CharsetUtil.US_ASCII), is(new UserMessage(user, "**").getFormattedMessage()));
+        assertThat(serverContext.getOrCreateChat("general").getMessages().size(), is(1));
+    }
+}
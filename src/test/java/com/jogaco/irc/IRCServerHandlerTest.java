@@ -6,13 +6,34 @@ import com.jogaco.irc.IRCServer.LoginCommand;
 import com.jogaco.irc.IRCServer.LogoutCommand;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.DefaultEventLoopGroup;
 import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.concurrent.EventExecutor;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import static org.hamcrest.CoreMatchers.containsString;
 import static org.hamcrest.CoreMatchers.hasItems;
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
 import static org.junit.Assert.assertThat;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 import org.junit.Test;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.when;
 
@@ -26,7 +47,7 @@ public class IRCServerHandlerTest {
         
         IRCServerHandler handler = new IRCServerHandler(serverContext);
         EmbeddedChannel channel = new EmbeddedChannel(handler);
-        channel.writeInbound(Unpooled.wrappedBuffer("/login user user".getBytes()));
+        channel.writeInbound(Unpooled.wrappedBuffer("/login user user\n".getBytes()));
         
         assertThat(handler.getUser().getUsername(), is("user"));
         
@@ -42,7 +63,7 @@ public class IRCServerHandlerTest {
         
         IRCServerHandler handler = new IRCServerHandler(serverContext);
         EmbeddedChannel channel = new EmbeddedChannel(handler);
-        channel.writeInbound(Unpooled.wrappedBuffer("/login user".getBytes()));
+        channel.writeInbound(Unpooled.wrappedBuffer("/login user\n".getBytes()));
         
         ByteBuf buf = channel.readOutbound();
         String response = buf.toString(io.netty.util.CharsetUtil.US_ASCII);
@@ -56,10 +77,10 @@ public class IRCServerHandlerTest {
         
         IRCServerHandler handler = new IRCServerHandler(serverContext);
         EmbeddedChannel channel = new EmbeddedChannel(handler);
-        channel.writeInbound(Unpooled.wrappedBuffer("/login user user".getBytes()));
+        channel.writeInbound(Unpooled.wrappedBuffer("/login user user\n".getBytes()));
         ByteBuf buf = channel.readOutbound();
         
-        channel.writeInbound(Unpooled.wrappedBuffer("/login user wrong".getBytes()));
+        channel.writeInbound(Unpooled.wrappedBuffer("/login user wrong\n".getBytes()));
         buf = channel.readOutbound();
         
         String response = buf.toString(io.netty.util.CharsetUtil.US_ASCII);
@@ -73,7 +94,7 @@ public class IRCServerHandlerTest {
         
         IRCServerHandler handler = new IRCServerHandler(serverContext);
         EmbeddedChannel channel = new EmbeddedChannel(handler);
-        channel.writeInbound(Unpooled.wrappedBuffer("/join channel".getBytes()));
+        channel.writeInbound(Unpooled.wrappedBuffer("/join channel\n".getBytes()));
         
         ByteBuf buf = channel.readOutbound();
         String response = buf.toString(io.netty.util.CharsetUtil.US_ASCII);
@@ -91,7 +112,7 @@ public class IRCServerHandlerTest {
         when(handlerMock.getUser()).thenReturn(user);
 
         EmbeddedChannel channel = new EmbeddedChannel(handlerMock);
-        channel.writeInbound(Unpooled.wrappedBuffer("/join".getBytes()));
+        channel.writeInbound(Unpooled.wrappedBuffer("/join\n".getBytes()));
         
         ByteBuf buf = channel.readOutbound();
         String response = buf.toString(io.netty.util.CharsetUtil.US_ASCII);
@@ -109,7 +130,7 @@ public class IRCServerHandlerTest {
         when(handlerMock.getUser()).thenReturn(user);
 
         EmbeddedChannel channel = new EmbeddedChannel(handlerMock);
-        channel.writeInbound(Unpooled.wrappedBuffer("/join channel".getBytes()));
+        channel.writeInbound(Unpooled.wrappedBuffer("/join channel\n".getBytes()));
         
         ByteBuf buf = channel.readOutbound();
         String response = buf.toString(io.netty.util.CharsetUtil.US_ASCII);
@@ -131,19 +152,19 @@ public class IRCServerHandlerTest {
         IRCServerHandler handlerMock = spy(handler);
         when(handlerMock.getUser()).thenReturn(user);
         EmbeddedChannel channel = new EmbeddedChannel(handlerMock);
-        channel.writeInbound(Unpooled.wrappedBuffer("/join channel".getBytes()));
+        channel.writeInbound(Unpooled.wrappedBuffer("/join channel\n".getBytes()));
 
         UserMessage userMessage1 = new UserMessage(user, "message1");
-        channel.writeInbound(Unpooled.wrappedBuffer(userMessage1.getMessage().getBytes()));
+        channel.writeInbound(Unpooled.wrappedBuffer((userMessage1.getMessage() + "\n").getBytes()));
         UserMessage userMessage2 = new UserMessage(user, "message1");
-        channel.writeInbound(Unpooled.wrappedBuffer(userMessage2.getMessage().getBytes()));
+        channel.writeInbound(Unpooled.wrappedBuffer((userMessage2.getMessage() + "\n").getBytes()));
         
         User user2 = new User("user2", "user2");
         IRCServerHandler handler2 = new IRCServerHandler(serverContext);
         IRCServerHandler handlerMock2 = spy(handler2);
         when(handlerMock2.getUser()).thenReturn(user2);
         EmbeddedChannel channel2 = new EmbeddedChannel(handlerMock2);
-        channel2.writeInbound(Unpooled.wrappedBuffer("/join channel".getBytes()));
+        channel2.writeInbound(Unpooled.wrappedBuffer("/join channel\n".getBytes()));
         ByteBuf buf = channel2.readOutbound();
 
         String response = buf.toString(io.netty.util.CharsetUtil.US_ASCII);
@@ -157,9 +178,9 @@ public class IRCServerHandlerTest {
         
         IRCServerHandler handler = new IRCServerHandler(serverContext);
         EmbeddedChannel channel = new EmbeddedChannel(handler);
-        channel.writeInbound(Unpooled.wrappedBuffer("/login user user".getBytes()));
+        channel.writeInbound(Unpooled.wrappedBuffer("/login user user\n".getBytes()));
 
-        channel.writeInbound(Unpooled.wrappedBuffer("/leave".getBytes()));
+        channel.writeInbound(Unpooled.wrappedBuffer("/leave\n".getBytes()));
         
         ByteBuf buf = channel.readOutbound();
         
@@ -175,11 +196,11 @@ public class IRCServerHandlerTest {
         
         IRCServerHandler handler = new IRCServerHandler(serverContext);
         EmbeddedChannel channel = new EmbeddedChannel(handler);
-        channel.writeInbound(Unpooled.wrappedBuffer("/login user user".getBytes()));
+        channel.writeInbound(Unpooled.wrappedBuffer("/login user user\n".getBytes()));
         User user = handler.getUser();
-        channel.writeInbound(Unpooled.wrappedBuffer("/join channel".getBytes()));
+        channel.writeInbound(Unpooled.wrappedBuffer("/join channel\n".getBytes()));
 
-        channel.writeInbound(Unpooled.wrappedBuffer("/leave".getBytes()));
+        channel.writeInbound(Unpooled.wrappedBuffer("/leave\n".getBytes()));
         
         Chat chat = serverContext.getOrCreateChat("channel");
         List<User> usersInChannel = chat.getUsers();
@@ -193,10 +214,10 @@ public class IRCServerHandlerTest {
         
         IRCServerHandler handler = new IRCServerHandler(serverContext);
         EmbeddedChannel channel = new EmbeddedChannel(handler);
-        channel.writeInbound(Unpooled.wrappedBuffer("/login user user".getBytes()));
+        channel.writeInbound(Unpooled.wrappedBuffer("/login user user\n".getBytes()));
         User user = handler.getUser();
-        channel.writeInbound(Unpooled.wrappedBuffer("/join channel1".getBytes()));
-        channel.writeInbound(Unpooled.wrappedBuffer("/join channel2".getBytes()));
+        channel.writeInbound(Unpooled.wrappedBuffer("/join channel1\n".getBytes()));
+        channel.writeInbound(Unpooled.wrappedBuffer("/join channel2\n".getBytes()));
 
         Chat chat1 = serverContext.getOrCreateChat("channel1");
         List<User> usersInChannel1 = chat1.getUsers();
@@ -216,7 +237,7 @@ public class IRCServerHandlerTest {
         IRCServerHandler handlerMock = spy(handler);
         when(handlerMock.getUser()).thenReturn(user);
         EmbeddedChannel channel = new EmbeddedChannel(handlerMock);
-        channel.writeInbound(Unpooled.wrappedBuffer("/join channel".getBytes()));
+        channel.writeInbound(Unpooled.wrappedBuffer("/join channel\n".getBytes()));
 
         Chat chat = serverContext.getOrCreateChat("channel");
         Chat chatMock = spy(chat);
@@ -229,14 +250,14 @@ public class IRCServerHandlerTest {
         IRCServerHandler handlerMock2 = spy(handler2);
         when(handlerMock2.getUser()).thenReturn(user2);
         EmbeddedChannel channel2 = new EmbeddedChannel(handlerMock2);
-        channel2.writeInbound(Unpooled.wrappedBuffer("/join channel".getBytes()));
+        channel2.writeInbound(Unpooled.wrappedBuffer("/join channel\n".getBytes()));
         
         User user3 = new User("user3", "user3");
         IRCServerHandler handler3 = new IRCServerHandler(serverContextMock);
         IRCServerHandler handlerMock3 = spy(handler3);
         when(handlerMock3.getUser()).thenReturn(user3);
         EmbeddedChannel channel3 = new EmbeddedChannel(handlerMock3);
-        channel3.writeInbound(Unpooled.wrappedBuffer("/join channel".getBytes()));
+        channel3.writeInbound(Unpooled.wrappedBuffer("/join channel\n".getBytes()));
         
         ByteBuf buf = channel3.readOutbound();
         
@@ -245,7 +266,26 @@ public class IRCServerHandlerTest {
         assertThat(response, is(ChannelMaxUsersException.TOO_MANY_USERS));
     }
 
-    
+    @Test
+    public void failedJoinSinceStaysUnsequenced() {
+        ServerContext serverContext = new IRCServer(1);
+        Chat chat = spy(serverContext.getOrCreateChat("full"));
+        when(chat.maxClientsPerChannel()).thenReturn(0);
+        ServerContext serverContextMock = spy(serverContext);
+        when(serverContextMock.getOrCreateChat("full")).thenReturn(chat);
+
+        IRCServerHandler handler = new IRCServerHandler(serverContextMock);
+        EmbeddedChannel channel = new EmbeddedChannel(handler);
+        channel.writeInbound(Unpooled.wrappedBuffer("/login user user\n".getBytes()));
+        channel.releaseOutbound();
+        channel.writeInbound(Unpooled.wrappedBuffer("/join full since 0\n".getBytes()));
+        ByteBuf buf = channel.readOutbound();
+
+        assertThat(buf.toString(io.netty.util.CharsetUtil.US_ASCII), is(ChannelMaxUsersException.TOO_MANY_USERS));
+        assertThat(handler.isSequenced(), is(false));
+    }
+
+
     @Test
     public void handleJoinChannelMaxClientsAcceptAfterLeave() {
         ServerContext serverContext = new IRCServer(1);
@@ -255,7 +295,7 @@ public class IRCServerHandlerTest {
         IRCServerHandler handlerMock = spy(handler);
         when(handlerMock.getUser()).thenReturn(user);
         EmbeddedChannel channel = new EmbeddedChannel(handlerMock);
-        channel.writeInbound(Unpooled.wrappedBuffer("/join channel".getBytes()));
+        channel.writeInbound(Unpooled.wrappedBuffer("/join channel\n".getBytes()));
 
         Chat chat = serverContext.getOrCreateChat("channel");
         Chat chatMock = spy(chat);
@@ -268,16 +308,16 @@ public class IRCServerHandlerTest {
         IRCServerHandler handlerMock2 = spy(handler2);
         when(handlerMock2.getUser()).thenReturn(user2);
         EmbeddedChannel channel2 = new EmbeddedChannel(handlerMock2);
-        channel2.writeInbound(Unpooled.wrappedBuffer("/join channel".getBytes()));
+        channel2.writeInbound(Unpooled.wrappedBuffer("/join channel\n".getBytes()));
 
-        channel.writeInbound(Unpooled.wrappedBuffer("/leave".getBytes()));
+        channel.writeInbound(Unpooled.wrappedBuffer("/leave\n".getBytes()));
         
         User user3 = new User("user3", "user3");
         IRCServerHandler handler3 = new IRCServerHandler(serverContextMock);
         IRCServerHandler handlerMock3 = spy(handler3);
         when(handlerMock3.getUser()).thenReturn(user3);
         EmbeddedChannel channel3 = new EmbeddedChannel(handlerMock3);
-        channel3.writeInbound(Unpooled.wrappedBuffer("/join channel".getBytes()));
+        channel3.writeInbound(Unpooled.wrappedBuffer("/join channel\n".getBytes()));
         
         chat = serverContext.getOrCreateChat("channel");
         final List<User> users = chat.getUsers();
@@ -293,16 +333,16 @@ public class IRCServerHandlerTest {
         IRCServerHandler handlerMock = spy(handler);
         when(handlerMock.getUser()).thenReturn(user);
         EmbeddedChannel channel = new EmbeddedChannel(handlerMock);
-        channel.writeInbound(Unpooled.wrappedBuffer("/join channel".getBytes()));
+        channel.writeInbound(Unpooled.wrappedBuffer("/join channel\n".getBytes()));
         
         User user2 = new User("user2", "user2");
         IRCServerHandler handler2 = new IRCServerHandler(serverContext);
         IRCServerHandler handlerMock2 = spy(handler2);
         when(handlerMock2.getUser()).thenReturn(user2);
         EmbeddedChannel channel2 = new EmbeddedChannel(handlerMock2);
-        channel2.writeInbound(Unpooled.wrappedBuffer("/join channel".getBytes()));
+        channel2.writeInbound(Unpooled.wrappedBuffer("/join channel\n".getBytes()));
 
-        channel.writeInbound(Unpooled.wrappedBuffer("/users".getBytes()));
+        channel.writeInbound(Unpooled.wrappedBuffer("/users\n".getBytes()));
 
         ByteBuf buf = channel.readOutbound();
         
@@ -325,18 +365,18 @@ public class IRCServerHandlerTest {
         IRCServerHandler handlerMock = spy(handler);
         when(handlerMock.getUser()).thenReturn(user);
         EmbeddedChannel channel = new EmbeddedChannel(handlerMock);
-        channel.writeInbound(Unpooled.wrappedBuffer("/join channel".getBytes()));
+        channel.writeInbound(Unpooled.wrappedBuffer("/join channel\n".getBytes()));
         
         User user2 = new User("user2", "user2");
         IRCServerHandler handler2 = new IRCServerHandler(serverContext);
         IRCServerHandler handlerMock2 = spy(handler2);
         when(handlerMock2.getUser()).thenReturn(user2);
         EmbeddedChannel channel2 = new EmbeddedChannel(handlerMock2);
-        channel2.writeInbound(Unpooled.wrappedBuffer("/join channel".getBytes()));
+        channel2.writeInbound(Unpooled.wrappedBuffer("/join channel\n".getBytes()));
         ByteBuf buf = channel2.readOutbound();
 
         UserMessage userMessage = new UserMessage(user, "message");
-        channel.writeInbound(Unpooled.wrappedBuffer(userMessage.getMessage().getBytes()));
+        channel.writeInbound(Unpooled.wrappedBuffer((userMessage.getMessage() + "\n").getBytes()));
 
         buf = channel2.readOutbound();
         String response = buf.toString(io.netty.util.CharsetUtil.US_ASCII);
@@ -344,7 +384,720 @@ public class IRCServerHandlerTest {
         assertThat(response, is(userMessage.getFormattedMessage()));
     }
 
-   
+
+    @Test
+    public void virtualThreadCommandsSelectsBlockingCommands() {
+        IRCServer serverContext = new IRCServer(1);
+        assertThat(serverContext.getCommandExecutor("/login user user"), nullValue());
+
+        serverContext.setVirtualThreadCommands(true);
+        assertThat(serverContext.getCommandExecutor("/login user user"), notNullValue());
+        assertThat(serverContext.getCommandExecutor("/join channel"), notNullValue());
+        assertThat(serverContext.getCommandExecutor("/users"), nullValue());
+        assertThat(serverContext.getCommandExecutor("message"), nullValue());
+        serverContext.setVirtualThreadCommands(false);
+    }
+
+    @Test
+    public void offloadedCommandKeepsConnectionOrder() {
+        final List<Runnable> deferred = new ArrayList<>();
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                deferred.add(command);
+            }
+        };
+        ServerContext serverContext = spy(new IRCServer(1));
+        when(serverContext.getCommandExecutor(anyString())).thenReturn(null);
+        when(serverContext.getCommandExecutor("/login user user")).thenReturn(executor);
+
+        IRCServerHandler handler = new IRCServerHandler(serverContext);
+        EmbeddedChannel channel = new EmbeddedChannel(handler);
+        channel.writeInbound(Unpooled.wrappedBuffer("/login user user\n".getBytes()));
+        channel.writeInbound(Unpooled.wrappedBuffer("/join channel\n".getBytes()));
+
+        // the join waits for the offloaded login
+        assertThat(channel.readOutbound(), nullValue());
+        assertThat(handler.getUser(), nullValue());
+
+        for (Runnable task : deferred) {
+            task.run();
+        }
+        channel.runPendingTasks();
+
+        ByteBuf buf = channel.readOutbound();
+        assertThat(buf.toString(io.netty.util.CharsetUtil.US_ASCII), is(LoginCommand.SUCCESS));
+        buf = channel.readOutbound();
+        assertThat(buf.toString(io.netty.util.CharsetUtil.US_ASCII), is(""));
+        assertThat(serverContext.getOrCreateChat("channel").getUsers().contains(handler.getUser()), is(true));
+    }
+
+
+    @Test
+    public void disconnectWhileOffloadedJoinInFlight() {
+        final List<Runnable> deferred = new ArrayList<>();
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                deferred.add(command);
+            }
+        };
+        ServerContext serverContext = spy(new IRCServer(1));
+        when(serverContext.getCommandExecutor(anyString())).thenReturn(null);
+        when(serverContext.getCommandExecutor("/join room")).thenReturn(executor);
+
+        IRCServerHandler handler = new IRCServerHandler(serverContext);
+        EmbeddedChannel channel = new EmbeddedChannel(handler);
+        channel.writeInbound(Unpooled.wrappedBuffer("/login ghost x\n/join room\n".getBytes()));
+        channel.close();
+
+        for (Runnable task : deferred) {
+            task.run();
+        }
+        channel.runPendingTasks();
+
+        assertThat(serverContext.getOrCreateChat("room").getUsers().isEmpty(), is(true));
+    }
+
+
+    @Test
+    public void handleSearch() {
+        ServerContext serverContext = new IRCServer(1);
+
+        IRCServerHandler handler = new IRCServerHandler(serverContext);
+        EmbeddedChannel channel = new EmbeddedChannel(handler);
+        channel.writeInbound(Unpooled.wrappedBuffer("/login user user\n".getBytes()));
+        channel.writeInbound(Unpooled.wrappedBuffer("/join channel\n".getBytes()));
+        channel.writeInbound(Unpooled.wrappedBuffer("hello world\n".getBytes()));
+        channel.writeInbound(Unpooled.wrappedBuffer("nothing here\n".getBytes()));
+        channel.writeInbound(Unpooled.wrappedBuffer("Hello, again\n".getBytes()));
+        channel.releaseOutbound();
+
+        channel.writeInbound(Unpooled.wrappedBuffer("/search HELLO\n".getBytes()));
+        ByteBuf buf = channel.readOutbound();
+        String response = buf.toString(io.netty.util.CharsetUtil.US_ASCII);
+
+        User user = handler.getUser();
+        assertThat(response, is(new UserMessage(user, "hello world").getFormattedMessage()
+                + new UserMessage(user, "Hello, again").getFormattedMessage()));
+    }
+
+    @Test
+    public void handleSearchPrunedWithHistory() {
+        IRCServer serverContext = new IRCServer(1);
+        serverContext.setHistoryBudget(new HistoryBudget(HistoryBudget.DEFAULT_MAX_BYTES,
+                ServerContext.MAX_MESSAGES, ServerContext.MAX_MESSAGES, ServerContext.MAX_MESSAGES));
+
+        IRCServerHandler handler = new IRCServerHandler(serverContext);
+        EmbeddedChannel channel = new EmbeddedChannel(handler);
+        channel.writeInbound(Unpooled.wrappedBuffer("/login user user\n".getBytes()));
+        channel.writeInbound(Unpooled.wrappedBuffer("/join channel\n".getBytes()));
+        channel.writeInbound(Unpooled.wrappedBuffer("evicted soon\n".getBytes()));
+        for (int j = 0; j < ServerContext.MAX_MESSAGES; ++j) {
+            channel.writeInbound(Unpooled.wrappedBuffer(("message" + j + "\n").getBytes()));
+        }
+        channel.releaseOutbound();
+
+        channel.writeInbound(Unpooled.wrappedBuffer("/search evicted\n".getBytes()));
+        ByteBuf buf = channel.readOutbound();
+        assertThat(buf.toString(io.netty.util.CharsetUtil.US_ASCII), is(""));
+
+        channel.writeInbound(Unpooled.wrappedBuffer("/search message3\n".getBytes()));
+        buf = channel.readOutbound();
+        assertThat(buf.toString(io.netty.util.CharsetUtil.US_ASCII),
+                is(new UserMessage(handler.getUser(), "message3").getFormattedMessage()));
+    }
+
+
+    @Test
+    public void flightRecorderEvents() throws IOException {
+        ServerContext serverContext = new IRCServer(1);
+        Path dump = Files.createTempFile("irc", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable(IRCEvents.CommandEvent.class);
+            recording.enable(IRCEvents.FanOutEvent.class);
+            recording.enable(IRCEvents.JoinEvent.class);
+            recording.enable(IRCEvents.LeaveEvent.class);
+            recording.start();
+
+            IRCServerHandler handler = new IRCServerHandler(serverContext);
+            EmbeddedChannel channel = new EmbeddedChannel(handler);
+            channel.writeInbound(Unpooled.wrappedBuffer("/login user user\n".getBytes()));
+            channel.writeInbound(Unpooled.wrappedBuffer("/join channel\n".getBytes()));
+            channel.writeInbound(Unpooled.wrappedBuffer("message\n".getBytes()));
+            channel.writeInbound(Unpooled.wrappedBuffer("/leave\n".getBytes()));
+            // no longer a member: no second Leave event
+            serverContext.getOrCreateChat("channel").leave(handler);
+
+            recording.stop();
+            recording.dump(dump);
+        }
+        Set<String> commands = new HashSet<>();
+        Set<String> eventTypes = new HashSet<>();
+        int leaves = 0;
+        for (RecordedEvent event : RecordingFile.readAllEvents(dump)) {
+            eventTypes.add(event.getEventType().getName());
+            if (event.getEventType().getName().equals("com.jogaco.irc.Leave")) {
+                ++leaves;
+            }
+            if (event.getEventType().getName().equals("com.jogaco.irc.Command")) {
+                commands.add(event.getString("command"));
+            }
+        }
+        Files.delete(dump);
+
+        assertThat(eventTypes, hasItems("com.jogaco.irc.FanOut", "com.jogaco.irc.Join", "com.jogaco.irc.Leave"));
+        assertThat(commands, hasItems("LoginCommand", "ChannelCommand", "MessageCommand", "LogoutCommand"));
+        assertThat(leaves, is(1));
+    }
+
+
+    @Test
+    public void activeChannelGetsDeeperHistory() {
+        ServerContext serverContext = new IRCServer(1);
+
+        EmbeddedChannel channel = new EmbeddedChannel(new IRCServerHandler(serverContext));
+        channel.writeInbound(Unpooled.wrappedBuffer("/login user user\n".getBytes()));
+        channel.writeInbound(Unpooled.wrappedBuffer("/join channel\n".getBytes()));
+        for (int j = 0; j < ServerContext.MAX_MESSAGES * 2; ++j) {
+            channel.writeInbound(Unpooled.wrappedBuffer(("message" + j + "\n").getBytes()));
+        }
+
+        Chat chat = serverContext.getOrCreateChat("channel");
+        assertThat(chat.historyCapacity() > ServerContext.MAX_MESSAGES, is(true));
+        assertThat(chat.getMessages().size(), is(ServerContext.MAX_MESSAGES * 2));
+    }
+
+    @Test
+    public void historyBudgetEvictsLeastRecentlyUsedChannel() {
+        IRCServer serverContext = new IRCServer(1);
+        UserMessage sample = new UserMessage(new User("user", "user"), "message");
+        HistoryBudget budget = new HistoryBudget(HistoryBudget.sizeOf(sample) * 3);
+        serverContext.setHistoryBudget(budget);
+
+        EmbeddedChannel channel = new EmbeddedChannel(new IRCServerHandler(serverContext));
+        channel.writeInbound(Unpooled.wrappedBuffer("/login user user\n".getBytes()));
+        channel.writeInbound(Unpooled.wrappedBuffer("/join channel1\n".getBytes()));
+        channel.writeInbound(Unpooled.wrappedBuffer("message\n".getBytes()));
+        channel.writeInbound(Unpooled.wrappedBuffer("message\n".getBytes()));
+        channel.writeInbound(Unpooled.wrappedBuffer("/join channel2\n".getBytes()));
+        channel.writeInbound(Unpooled.wrappedBuffer("message\n".getBytes()));
+        channel.writeInbound(Unpooled.wrappedBuffer("message\n".getBytes()));
+
+        assertThat(serverContext.getOrCreateChat("channel1").getMessages().size(), is(0));
+        assertThat(serverContext.getOrCreateChat("channel2").getMessages().size(), is(2));
+        assertThat(budget.getUsedBytes(), is(HistoryBudget.sizeOf(sample) * 2));
+        assertThat(budget.getEvictedChannels(), is(1L));
+    }
+
+    @Test
+    public void historyBudgetShrinksQuietChannel() {
+        IRCServer serverContext = new IRCServer(1);
+        HistoryBudget budget = new HistoryBudget(HistoryBudget.DEFAULT_MAX_BYTES);
+        serverContext.setHistoryBudget(budget);
+
+        EmbeddedChannel channel = new EmbeddedChannel(new IRCServerHandler(serverContext));
+        channel.writeInbound(Unpooled.wrappedBuffer("/login user user\n/join channel\n".getBytes()));
+        channel.writeInbound(Unpooled.wrappedBuffer("message\n".getBytes()));
+        Chat chat = serverContext.getOrCreateChat("channel");
+        assertThat(budget.getChannels(), is(1));
+
+        // no further message: only the sweep can notice the channel went quiet
+        long quiet = System.nanoTime() + HistoryBudget.COLD_WINDOW_NANOS + 1;
+        budget.sweep(quiet);
+        assertThat(chat.historyCapacity(), is(ServerContext.MAX_MESSAGES / 2));
+        budget.sweep(quiet);
+        assertThat(chat.historyCapacity(), is(ServerContext.MAX_MESSAGES / 2));
+        budget.sweep(quiet + HistoryBudget.COLD_WINDOW_NANOS + 1);
+        assertThat(chat.historyCapacity(), is(ServerContext.MAX_MESSAGES / 4));
+        assertThat(chat.getMessages().size(), is(1));
+    }
+
+    @Test
+    public void handleSearchAfterQuietChannelShrinks() {
+        IRCServer serverContext = new IRCServer(1);
+        HistoryBudget budget = new HistoryBudget(HistoryBudget.DEFAULT_MAX_BYTES);
+        serverContext.setHistoryBudget(budget);
+
+        IRCServerHandler handler = new IRCServerHandler(serverContext);
+        EmbeddedChannel channel = new EmbeddedChannel(handler);
+        channel.writeInbound(Unpooled.wrappedBuffer("/login user user\n/join channel\n".getBytes()));
+        int sent = ServerContext.MAX_MESSAGES * 3 / 2;
+        for (int j = 0; j < sent; ++j) {
+            channel.writeInbound(Unpooled.wrappedBuffer(((j < 3 ? "early " : "late ") + j + "\n").getBytes()));
+        }
+        channel.releaseOutbound();
+        Chat chat = serverContext.getOrCreateChat("channel");
+        assertThat(chat.getMessages().size(), is(sent));
+
+        budget.sweep(System.nanoTime() + HistoryBudget.COLD_WINDOW_NANOS + 1);
+        assertThat(chat.getMessages().size() < sent - 3, is(true));
+
+        channel.writeInbound(Unpooled.wrappedBuffer("/search early\n".getBytes()));
+        ByteBuf buf = channel.readOutbound();
+        assertThat(buf.toString(io.netty.util.CharsetUtil.US_ASCII), is(""));
+        assertThat(channel.isActive(), is(true));
+
+        channel.writeInbound(Unpooled.wrappedBuffer(("/search " + (sent - 1) + "\n").getBytes()));
+        buf = channel.readOutbound();
+        assertThat(buf.toString(io.netty.util.CharsetUtil.US_ASCII),
+                is(new UserMessage(handler.getUser(), "late " + (sent - 1)).getFormattedMessage()));
+    }
+
+
+    @Test
+    public void handlePipelinedCommands() {
+        ServerContext serverContext = new IRCServer(1);
+
+        EmbeddedChannel channel = new EmbeddedChannel(new IRCServerHandler(serverContext));
+        channel.writeInbound(Unpooled.wrappedBuffer("/login user user\r\n/join channel\r\nhello\r\n/users\r\n".getBytes()));
+
+        ByteBuf buf = channel.readOutbound();
+        String response = buf.toString(io.netty.util.CharsetUtil.US_ASCII);
+
+        assertThat(response, is(LoginCommand.SUCCESS + "user" + lineSep));
+        assertThat(channel.readOutbound(), nullValue());
+        assertThat(serverContext.getOrCreateChat("channel").getMessages().size(), is(1));
+    }
+
+
+    @Test
+    public void handleCommandSplitAcrossReads() {
+        ServerContext serverContext = new IRCServer(1);
+
+        IRCServerHandler handler = new IRCServerHandler(serverContext);
+        EmbeddedChannel channel = new EmbeddedChannel(handler);
+        channel.writeInbound(Unpooled.wrappedBuffer("/login us".getBytes()));
+        assertThat(channel.readOutbound(), nullValue());
+        channel.writeInbound(Unpooled.wrappedBuffer("er pw\n/join chan".getBytes()));
+        ByteBuf buf = channel.readOutbound();
+        assertThat(buf.toString(io.netty.util.CharsetUtil.US_ASCII), is(LoginCommand.SUCCESS));
+        assertThat(handler.getUser().getUsername(), is("user"));
+
+        // a multi-byte character split between reads
+        byte[] line = "nel\ncaf\u00e9\n".getBytes(io.netty.util.CharsetUtil.UTF_8);
+        channel.writeInbound(Unpooled.wrappedBuffer(line, 0, line.length - 2));
+        channel.writeInbound(Unpooled.wrappedBuffer(line, line.length - 2, 2));
+        Chat chat = serverContext.getOrCreateChat("channel");
+        assertThat(chat.getMessages().size(), is(1));
+        assertThat(chat.getMessages().get(0).getMessage(), is("caf\u00e9"));
+    }
+
+    @Test
+    public void overlongLineIsDropped() {
+        ServerContext serverContext = new IRCServer(1);
+
+        IRCServerHandler handler = new IRCServerHandler(serverContext);
+        EmbeddedChannel channel = new EmbeddedChannel(handler);
+        channel.writeInbound(Unpooled.wrappedBuffer(new byte[IRCServerHandler.MAX_LINE_LENGTH + 1]));
+        channel.writeInbound(Unpooled.wrappedBuffer("still the long line\n/login user user\n".getBytes()));
+
+        ByteBuf buf = channel.readOutbound();
+        assertThat(buf.toString(io.netty.util.CharsetUtil.US_ASCII), is(LoginCommand.SUCCESS));
+        assertThat(channel.readOutbound(), nullValue());
+    }
+
+
+    @Test
+    public void presenceCoalescedPerWindow() {
+        IRCServer serverContext = new IRCServer(1);
+        serverContext.setPresenceWindow(java.util.concurrent.TimeUnit.HOURS.toMillis(1));
+
+        List<EmbeddedChannel> channels = new ArrayList<>();
+        for (String name : new String[] {"a", "b", "c", "d"}) {
+            EmbeddedChannel channel = new EmbeddedChannel(new IRCServerHandler(serverContext));
+            channel.writeInbound(Unpooled.wrappedBuffer(("/login " + name + " " + name + "\n/join channel\n").getBytes()));
+            channel.releaseOutbound();
+            channels.add(channel);
+        }
+        channels.get(3).writeInbound(Unpooled.wrappedBuffer("/leave\n".getBytes()));
+        channels.get(3).releaseOutbound();
+
+        Chat chat = serverContext.getOrCreateChat("channel");
+        chat.flushPresence();
+        ByteBuf buf = channels.get(0).readOutbound();
+        assertThat(buf.toString(io.netty.util.CharsetUtil.US_ASCII), is("joined: a, b, c" + lineSep));
+        assertThat(channels.get(0).readOutbound(), nullValue());
+
+        channels.get(1).writeInbound(Unpooled.wrappedBuffer("/leave\n".getBytes()));
+        channels.get(2).writeInbound(Unpooled.wrappedBuffer("/leave\n".getBytes()));
+        channels.get(2).writeInbound(Unpooled.wrappedBuffer("/login c c\n/join channel\n".getBytes()));
+        chat.flushPresence();
+        buf = channels.get(0).readOutbound();
+        assertThat(buf.toString(io.netty.util.CharsetUtil.US_ASCII), is("left: b" + lineSep));
+    }
+
+
+    @Test
+    public void offHeapHistory() {
+        IRCServer serverContext = new IRCServer(1);
+        MessageSlab slab = new MessageSlab(4096);
+        serverContext.setMessageSlab(slab);
+        serverContext.setHistoryBudget(new HistoryBudget(HistoryBudget.DEFAULT_MAX_BYTES,
+                ServerContext.MAX_MESSAGES, ServerContext.MAX_MESSAGES, ServerContext.MAX_MESSAGES));
+
+        IRCServerHandler handler = new IRCServerHandler(serverContext);
+        EmbeddedChannel channel = new EmbeddedChannel(handler);
+        channel.writeInbound(Unpooled.wrappedBuffer("/login user user\n/join channel\n".getBytes()));
+        channel.writeInbound(Unpooled.wrappedBuffer("evicted soon\n".getBytes()));
+        StringBuilder expected = new StringBuilder();
+        for (int j = 0; j < ServerContext.MAX_MESSAGES; ++j) {
+            channel.writeInbound(Unpooled.wrappedBuffer(("message \u00e9 " + j + "\n").getBytes(io.netty.util.CharsetUtil.UTF_8)));
+            expected.append(new UserMessage(handler.getUser(), "message \u00e9 " + j).getFormattedMessage());
+        }
+        channel.releaseOutbound();
+
+        EmbeddedChannel channel2 = new EmbeddedChannel(new IRCServerHandler(serverContext));
+        channel2.writeInbound(Unpooled.wrappedBuffer("/login user2 user2\n".getBytes()));
+        channel2.releaseOutbound();
+        channel2.writeInbound(Unpooled.wrappedBuffer("/join channel\n".getBytes()));
+        ByteBuf buf = channel2.readOutbound();
+        assertThat(buf.toString(io.netty.util.CharsetUtil.UTF_8), is(expected.toString()));
+
+        channel2.writeInbound(Unpooled.wrappedBuffer("/search 7\n".getBytes()));
+        buf = channel2.readOutbound();
+        assertThat(buf.toString(io.netty.util.CharsetUtil.UTF_8),
+                is(new UserMessage(handler.getUser(), "message \u00e9 7").getFormattedMessage()));
+
+        Chat chat = serverContext.getOrCreateChat("channel");
+        assertThat(chat.getMessages().get(0).getMessage(), is("message \u00e9 0"));
+        assertThat(slab.getUsedBytes(), is(ServerContext.MAX_MESSAGES * 64L));
+
+        chat.releaseHistory();
+        assertThat(slab.getUsedBytes(), is(0L));
+    }
+
+    @Test
+    public void messageSlabStripes() {
+        MessageSlab slab = new MessageSlab(4096, 2);
+        long small = slab.store(0, "user", "user: hi");
+        long large = slab.store(1, "user", "user: " + new String(new char[200]).replace('\0', 'x'));
+        assertThat(MessageSlab.sizeOf(small), is(64L));
+        assertThat(MessageSlab.sizeOf(large), is(256L));
+        assertThat(slab.formattedMessage(small), is("user: hi"));
+        assertThat(slab.usernameLength(large), is(4));
+        assertThat(slab.getUsedBytes(), is(320L));
+        assertThat(slab.getReservedBytes(), is(2 * 4096L));
+
+        slab.free(small);
+        assertThat(slab.store(0, "user", "user: again"), is(small));
+        // a block freed in one stripe is not handed out by another
+        slab.free(large);
+        assertThat(slab.store(0, "user", "user: " + new String(new char[200]).replace('\0', 'y')) == large, is(false));
+    }
+
+    @Test
+    public void searchIndexPrunesEvictedPostings() {
+        SearchIndex index = new SearchIndex();
+        int retained = 10;
+        for (int i = 0; i < 1000; ++i) {
+            index.add(new UserMessage(new User("user", null), "common word" + i, i));
+            index.retainFrom(Math.max(0, i - retained + 1));
+        }
+        assertThat(index.search("common", 100).length, is(retained));
+        assertThat(index.search("word5", 1).length, is(0));
+        assertThat(index.search("word999", 1)[0], is(999L));
+        // the sweep keeps the evicted terms from piling up
+        assertThat(index.size() <= SearchIndex.MIN_SWEEP_INTERVAL + retained + 1, is(true));
+    }
+
+
+    static class RemoteChannel extends EmbeddedChannel {
+        private final java.net.InetSocketAddress remoteAddress;
+
+        RemoteChannel(String host) {
+            remoteAddress = new java.net.InetSocketAddress(host, 1234);
+        }
+
+        @Override
+        public java.net.SocketAddress remoteAddress() {
+            return remoteAddress;
+        }
+    }
+
+    @Test
+    public void admissionControlLimits() {
+        AdmissionControl admission = new AdmissionControl(3, 2, 0);
+        EmbeddedChannel server = new EmbeddedChannel(admission);
+
+        RemoteChannel first = new RemoteChannel("10.0.0.1");
+        server.writeInbound(first, new RemoteChannel("10.0.0.1"));
+        RemoteChannel third = new RemoteChannel("10.0.0.1");
+        server.writeInbound(third);
+        assertThat(third.isOpen(), is(false));
+        assertThat(admission.getRejectedMaxPerAddress(), is(1L));
+
+        server.writeInbound(new RemoteChannel("10.0.0.2"));
+        RemoteChannel overCap = new RemoteChannel("10.0.0.3");
+        server.writeInbound(overCap);
+        assertThat(overCap.isOpen(), is(false));
+        assertThat(admission.getRejectedMaxConnections(), is(1L));
+
+        first.close();
+        RemoteChannel again = new RemoteChannel("10.0.0.1");
+        server.writeInbound(again);
+        assertThat(again.isOpen(), is(true));
+        assertThat(admission.getAccepted(), is(4L));
+        assertThat(admission.getActiveConnections(), is(3));
+        assertThat(admission.getActiveAddresses(), is(2));
+        assertThat(server.inboundMessages().size(), is(4));
+    }
+
+    @Test
+    public void admissionControlAcceptRate() {
+        AdmissionControl admission = new AdmissionControl(0, 0, 2);
+        EmbeddedChannel server = new EmbeddedChannel(admission);
+
+        server.writeInbound(new RemoteChannel("10.0.0.1"), new RemoteChannel("10.0.0.2"), new RemoteChannel("10.0.0.3"));
+
+        assertThat(admission.getAccepted(), is(2L));
+        assertThat(admission.getRejectedAcceptRate(), is(1L));
+    }
+
+
+    @Test
+    public void handleScheduledFanOut() {
+        IRCServer serverContext = new IRCServer(1);
+        CommandScheduler scheduler = new CommandScheduler(0);
+        serverContext.setCommandScheduler(scheduler);
+        final List<String> delivered = new ArrayList<>();
+
+        IRCServerHandler handler = new IRCServerHandler(serverContext);
+        EmbeddedChannel channel = new EmbeddedChannel(new ChannelOutboundHandlerAdapter() {
+            @Override
+            public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+                delivered.add("user<-" + ((ByteBuf) msg).toString(io.netty.util.CharsetUtil.US_ASCII));
+                ctx.write(msg, promise);
+            }
+        }, handler);
+        channel.writeInbound(Unpooled.wrappedBuffer("/login user user\n/join channel\n".getBytes()));
+        channel.releaseOutbound();
+        User user = handler.getUser();
+
+        IRCServerHandler handler2 = new IRCServerHandler(serverContext) {
+            @Override
+            public void notify(UserMessage msg) {
+                delivered.add("user2<-" + msg.getFormattedMessage());
+            }
+        };
+        EmbeddedChannel channel2 = new EmbeddedChannel(handler2);
+        channel2.writeInbound(Unpooled.wrappedBuffer("/login user2 user2\n/join channel\n".getBytes()));
+        channel2.releaseOutbound();
+        delivered.clear();
+
+        // the control command behind the chat line is answered before the line is delivered
+        channel.writeInbound(Unpooled.wrappedBuffer("message1\n/users\n".getBytes()));
+        assertThat(delivered.size(), is(2));
+        assertThat(delivered.get(0), is("user<-user" + lineSep + "user2" + lineSep));
+        assertThat(delivered.get(1), is("user2<-" + new UserMessage(user, "message1").getFormattedMessage()));
+        assertThat(scheduler.getFanOuts(), is(1L));
+        assertThat(scheduler.getControlCommands(), is(5L));
+    }
+
+    @Test
+    public void controlCommandOvertakesPendingFanOut() {
+        IRCServer serverContext = new IRCServer(1);
+        // one message per slice
+        CommandScheduler scheduler = new CommandScheduler(0);
+        serverContext.setCommandScheduler(scheduler);
+        final List<String> delivered = new ArrayList<>();
+
+        IRCServerHandler handler = new IRCServerHandler(serverContext);
+        EmbeddedChannel channel = new EmbeddedChannel(new ChannelOutboundHandlerAdapter() {
+            @Override
+            public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+                delivered.add("user<-" + ((ByteBuf) msg).toString(io.netty.util.CharsetUtil.US_ASCII));
+                ctx.write(msg, promise);
+            }
+        }, handler);
+        channel.writeInbound(Unpooled.wrappedBuffer("/login user user\n/join channel\n".getBytes()));
+        channel.releaseOutbound();
+
+        IRCServerHandler handler2 = new IRCServerHandler(serverContext) {
+            @Override
+            public void notify(UserMessage msg) {
+                delivered.add("user2<-" + msg.getMessage());
+            }
+        };
+        EmbeddedChannel channel2 = new EmbeddedChannel(handler2);
+        channel2.writeInbound(Unpooled.wrappedBuffer("/login user2 user2\n/join channel\n".getBytes()));
+        channel2.releaseOutbound();
+        delivered.clear();
+
+        // each pass of the loop (here: each read) runs only a few slices
+        StringBuilder flood = new StringBuilder();
+        for (int j = 1; j <= 50; ++j) {
+            flood.append('m').append(j).append('\n');
+        }
+        channel.writeInbound(Unpooled.wrappedBuffer(flood.toString().getBytes()));
+        assertThat(delivered.size() < 50, is(true));
+        channel.writeInbound(Unpooled.wrappedBuffer("/users\n".getBytes()));
+        assertThat(delivered.contains("user<-user" + lineSep + "user2" + lineSep), is(true));
+        assertThat(delivered.contains("user2<-m50"), is(false));
+
+        while (delivered.size() < 51) {
+            channel.runPendingTasks();
+        }
+        assertThat(delivered.get(50), is("user2<-m50"));
+        assertThat(scheduler.getFanOutSlices() >= 50, is(true));
+    }
+
+    @Test
+    public void handleList() {
+        IRCServer serverContext = new IRCServer(1);
+        String[][] members = {{"lobby", "a", "b", "c"}, {"lounge", "d"}, {"dev", "e", "f"}};
+        List<EmbeddedChannel> channels = new ArrayList<>();
+        for (String[] channelMembers : members) {
+            for (int j = 1; j < channelMembers.length; ++j) {
+                EmbeddedChannel channel = new EmbeddedChannel(new IRCServerHandler(serverContext));
+                channel.writeInbound(Unpooled.wrappedBuffer(("/login " + channelMembers[j] + " x\n/join " + channelMembers[0] + "\n").getBytes()));
+                channel.releaseOutbound();
+                channels.add(channel);
+            }
+        }
+
+        EmbeddedChannel channel = new EmbeddedChannel(new IRCServerHandler(serverContext));
+        channel.writeInbound(Unpooled.wrappedBuffer("/list\n".getBytes()));
+        ByteBuf buf = channel.readOutbound();
+        assertThat(buf.toString(io.netty.util.CharsetUtil.US_ASCII),
+                is("lobby 3" + lineSep + "dev 2" + lineSep + "lounge 1" + lineSep));
+
+        channel.writeInbound(Unpooled.wrappedBuffer("/list lo\n".getBytes()));
+        buf = channel.readOutbound();
+        assertThat(buf.toString(io.netty.util.CharsetUtil.US_ASCII),
+                is("lobby 3" + lineSep + "lounge 1" + lineSep));
+
+        // leaving updates the counts, empty channels are no longer listed
+        channels.get(0).close();
+        channels.get(3).close();
+        channel.writeInbound(Unpooled.wrappedBuffer("/list\n".getBytes()));
+        buf = channel.readOutbound();
+        assertThat(buf.toString(io.netty.util.CharsetUtil.US_ASCII),
+                is("dev 2" + lineSep + "lobby 2" + lineSep));
+
+        channel.writeInbound(Unpooled.wrappedBuffer("/list lo x\n".getBytes()));
+        buf = channel.readOutbound();
+        assertThat(buf.toString(io.netty.util.CharsetUtil.US_ASCII), is(IRCServer.ListCommand.MISSING_PARAMS));
+    }
+
+    @Test
+    public void loopWatchdogReportsStall() throws Exception {
+        final IRCServer serverContext = new IRCServer(1);
+        final LoopWatchdog watchdog = new LoopWatchdog(50);
+        DefaultEventLoopGroup group = new DefaultEventLoopGroup(1);
+        final EventExecutor loop = group.next();
+        final ClientContext client = mock(ClientContext.class);
+        when(client.getCurrentChannel()).thenReturn(serverContext.getOrCreateChat("busy"));
+        watchdog.start(group);
+        try {
+            loop.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    LoopWatchdog.LoopState state = watchdog.current(loop);
+                    state.enter(serverContext.new UsersCommand(), client);
+                    Thread.sleep(300);
+                    state.exit();
+                    return null;
+                }
+            }).get();
+            Thread.sleep(100);
+        } finally {
+            watchdog.stop();
+            group.shutdownGracefully();
+        }
+
+        assertThat(watchdog.getStalls(), is(1L));
+        assertThat(watchdog.getLastStall(), containsString("running UsersCommand in channel busy"));
+        assertThat(watchdog.getLastStall(), containsString("java.lang.Thread.sleep"));
+        assertThat(watchdog.getLagHistograms()[0], containsString(">=1048576us=0"));
+        assertThat(watchdog.current(loop), nullValue());
+    }
+
+    @Test
+    public void loopWatchdogWatchesSeveralGroups() throws Exception {
+        LoopWatchdog watchdog = new LoopWatchdog(50);
+        DefaultEventLoopGroup workers = new DefaultEventLoopGroup(1);
+        // like the TLS loops, started after the plaintext workers
+        DefaultEventLoopGroup tls = new DefaultEventLoopGroup(1);
+        watchdog.start(workers);
+        watchdog.start(tls);
+        try {
+            tls.next().submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    Thread.sleep(300);
+                    return null;
+                }
+            }).get();
+            Thread.sleep(100);
+        } finally {
+            watchdog.stop();
+            workers.shutdownGracefully();
+            tls.shutdownGracefully();
+        }
+
+        assertThat(watchdog.getLoops(), is(2));
+        assertThat(watchdog.getStalls(), is(1L));
+    }
+
+    @Test
+    public void handleJoinChannelSince() {
+        IRCServer serverContext = new IRCServer(1);
+        serverContext.setHistoryBudget(new HistoryBudget(HistoryBudget.DEFAULT_MAX_BYTES,
+                ServerContext.MAX_MESSAGES, ServerContext.MAX_MESSAGES, ServerContext.MAX_MESSAGES));
+
+        IRCServerHandler handler = new IRCServerHandler(serverContext);
+        EmbeddedChannel channel = new EmbeddedChannel(handler);
+        channel.writeInbound(Unpooled.wrappedBuffer("/login user user\n/join channel\nmessage1\nmessage2\nmessage3\n".getBytes()));
+        channel.releaseOutbound();
+        User user = handler.getUser();
+
+        IRCServerHandler handler2 = new IRCServerHandler(serverContext);
+        EmbeddedChannel channel2 = new EmbeddedChannel(handler2);
+        channel2.writeInbound(Unpooled.wrappedBuffer("/login user2 user2\n".getBytes()));
+        channel2.releaseOutbound();
+        channel2.writeInbound(Unpooled.wrappedBuffer("/join channel since 1\n".getBytes()));
+        ByteBuf buf = channel2.readOutbound();
+        assertThat(buf.toString(io.netty.util.CharsetUtil.US_ASCII),
+                is("2 " + new UserMessage(user, "message2").getFormattedMessage()
+                + "3 " + new UserMessage(user, "message3").getFormattedMessage()));
+
+        // live messages are numbered too once the client asked for sequences
+        channel.writeInbound(Unpooled.wrappedBuffer("message4\n".getBytes()));
+        buf = channel2.readOutbound();
+        assertThat(buf.toString(io.netty.util.CharsetUtil.US_ASCII),
+                is("4 " + new UserMessage(user, "message4").getFormattedMessage()));
+
+        channel2.writeInbound(Unpooled.wrappedBuffer("/join channel since 4\n".getBytes()));
+        buf = channel2.readOutbound();
+        assertThat(buf.toString(io.netty.util.CharsetUtil.US_ASCII), is(""));
+
+        for (int j = 0; j < ServerContext.MAX_MESSAGES; ++j) {
+            channel.writeInbound(Unpooled.wrappedBuffer(("more" + j + "\n").getBytes()));
+        }
+        channel2.releaseOutbound();
+        // only the last MAX_MESSAGES, 5 to 24, are retained
+        channel2.writeInbound(Unpooled.wrappedBuffer("/join channel since 3\n".getBytes()));
+        buf = channel2.readOutbound();
+        String response = buf.toString(io.netty.util.CharsetUtil.US_ASCII);
+        assertThat(response.startsWith(Chat.HISTORY_GAP + "5 "), is(true));
+
+        channel2.writeInbound(Unpooled.wrappedBuffer("/join channel since x\n".getBytes()));
+        buf = channel2.readOutbound();
+        assertThat(buf.toString(io.netty.util.CharsetUtil.US_ASCII), is(ChannelCommand.MISSING_PARAMS));
+    }
+
+    @Test
+    public void writeDecimal() {
+        ByteBuf buf = Unpooled.buffer(1);
+        for (long value : new long[] {0, 7, 10, 1234567890123L, Long.MAX_VALUE}) {
+            buf.clear();
+            IRCServerHandler.writeDecimal(buf, value);
+            assertThat(buf.toString(io.netty.util.CharsetUtil.US_ASCII), is(Long.toString(value)));
+        }
+    }
+
+
     class RunnableChat implements Runnable {
        private Thread t;
        final private ServerContext serverContext;
@@ -360,11 +1113,11 @@ public class IRCServerHandlerTest {
             IRCServerHandler handlerMock = spy(handler);
             when(handlerMock.getUser()).thenReturn(user);
             EmbeddedChannel channel = new EmbeddedChannel(handlerMock);
-            channel.writeInbound(Unpooled.wrappedBuffer("/join channel".getBytes()));
+            channel.writeInbound(Unpooled.wrappedBuffer("/join channel\n".getBytes()));
             ByteBuf buf = channel.readOutbound();
             for (int j = 0; j < 10; ++j) {
                 UserMessage userMessage = new UserMessage(user, "message" + j);
-                channel.writeInbound(Unpooled.wrappedBuffer(userMessage.getMessage().getBytes()));
+                channel.writeInbound(Unpooled.wrappedBuffer((userMessage.getMessage() + "\n").getBytes()));
                 buf = channel.readOutbound();
             }
        }
@@ -0,0 +1,109 @@
+package com.jogaco.irc;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the server heap held by idle, logged-in clients, each in a channel
+ * of MAX_CLIENTS_PER_CHANNEL members, and projects how many such clients the
+ * heap can hold. Clients run in a child JVM so only the server side is counted.
+ *
+ *   java -cp target/classes:target/test-classes:netty.jar [-Dirc.compactConnections=true] \
+ *       com.jogaco.irc.IdleClientsBenchmark [clients] [port]
+ *
+ * Each client needs a file descriptor on both sides, so raise ulimit -n as needed.
+ */
+public class IdleClientsBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 9090;
+        if (args.length > 2 && args[2].equals("clients")) {
+            runClients(clients, port);
+            return;
+        }
+
+        final IRCServer server = new IRCServer(port);
+        server.setCompactConnections(Boolean.getBoolean("irc.compactConnections"));
+        Thread serverThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    server.run();
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                }
+            }
+        }, "server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Thread.sleep(1000);
+
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long before = usedHeap(memory);
+
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process child = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                IdleClientsBenchmark.class.getName(), String.valueOf(clients), String.valueOf(port), "clients")
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        BufferedReader out = new BufferedReader(new InputStreamReader(child.getInputStream(), StandardCharsets.UTF_8));
+        String line = out.readLine();
+        if (!"ready".equals(line)) {
+            System.err.println("clients failed: " + line);
+            child.destroy();
+            System.exit(1);
+        }
+        // let the last commands drain
+        Thread.sleep(2000);
+        long after = usedHeap(memory);
+
+        long perClient = (after - before) / clients;
+        long maxHeap = memory.getHeapMemoryUsage().getMax();
+        System.out.println("clients: " + clients
+                + (Boolean.getBoolean("irc.compactConnections") ? " (compact)" : ""));
+        System.out.println("heap per idle client: " + perClient + " bytes");
+        if (perClient > 0 && maxHeap > 0) {
+            System.out.println("idle clients per " + (maxHeap >> 20) + " MB heap: " + (maxHeap / perClient));
+        }
+        child.destroy();
+        System.exit(0);
+    }
+
+    static long usedHeap(MemoryMXBean memory) throws InterruptedException {
+        for (int i = 0; i < 3; ++i) {
+            System.gc();
+            Thread.sleep(200);
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    static void runClients(int clients, int port) throws Exception {
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", port);
+        List<SocketChannel> sockets = new ArrayList<>(clients);
+        ByteBuffer response = ByteBuffer.allocate(256);
+        for (int i = 0; i < clients; ++i) {
+            SocketChannel socket = SocketChannel.open(address);
+            String name = "idle" + i;
+            socket.write(StandardCharsets.UTF_8.encode("/login " + name + " " + name + "\n"));
+            // wait for Welcome: the join needs the login done
+            response.clear();
+            socket.read(response);
+            socket.write(StandardCharsets.UTF_8.encode("/join channel" + (i / ServerContext.MAX_CLIENTS_PER_CHANNEL) + "\n"));
+            sockets.add(socket);
+        }
+        System.out.println("ready");
+        System.out.flush();
+        // held open until the server destroys this process
+        Thread.sleep(Long.MAX_VALUE);
+    }
+}
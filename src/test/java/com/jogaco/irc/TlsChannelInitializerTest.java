@@ -0,0 +1,26 @@
+package com.jogaco.irc;
+
+import javax.net.ssl.SSLSession;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import org.junit.Test;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class TlsChannelInitializerTest {
+
+    @Test
+    public void sessionCreatedByTheHandshakeIsNotResumed() {
+        SSLSession session = mock(SSLSession.class);
+        when(session.getCreationTime()).thenReturn(1000L);
+        assertThat(TlsChannelInitializer.isResumed(session, 1000L), is(false));
+        assertThat(TlsChannelInitializer.isResumed(session, 900L), is(false));
+    }
+
+    @Test
+    public void sessionOlderThanTheHandshakeIsResumed() {
+        SSLSession session = mock(SSLSession.class);
+        when(session.getCreationTime()).thenReturn(1000L);
+        assertThat(TlsChannelInitializer.isResumed(session, 1001L), is(true));
+    }
+}
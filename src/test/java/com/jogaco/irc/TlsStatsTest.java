@@ -0,0 +1,40 @@
+package com.jogaco.irc;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import org.junit.Test;
+
+public class TlsStatsTest {
+
+    @Test
+    public void handshakesPerSecondReportsLastFullSecond() {
+        TlsStats stats = new TlsStats();
+        stats.handshakeCompleted(false, 100);
+        stats.handshakeCompleted(false, 100);
+        stats.handshakeCompleted(true, 100);
+        // the current second is still counting
+        assertThat(stats.handshakesPerSecond(100), is(0L));
+
+        stats.handshakeCompleted(false, 101);
+        assertThat(stats.handshakesPerSecond(101), is(3L));
+        assertThat(stats.handshakesPerSecond(102), is(1L));
+        // an idle second in between: nothing happened during the last full second
+        assertThat(stats.handshakesPerSecond(104), is(0L));
+    }
+
+    @Test
+    public void resumptionHitRate() {
+        TlsStats stats = new TlsStats();
+        assertThat(stats.getResumptionHitRate(), is(0.0));
+
+        stats.handshakeCompleted(false, 1);
+        stats.handshakeCompleted(true, 1);
+        stats.handshakeCompleted(true, 1);
+        stats.handshakeCompleted(true, 1);
+        stats.handshakeFailed();
+        assertThat(stats.getHandshakes(), is(4L));
+        assertThat(stats.getResumedHandshakes(), is(3L));
+        assertThat(stats.getFailedHandshakes(), is(1L));
+        assertThat(stats.getResumptionHitRate(), is(0.75));
+    }
+}